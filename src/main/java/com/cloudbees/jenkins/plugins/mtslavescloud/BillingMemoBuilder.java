@@ -29,6 +29,7 @@ import hudson.matrix.MatrixBuild;
 import hudson.model.AbstractBuild;
 import hudson.model.Cause;
 import hudson.model.Node;
+import hudson.model.Result;
 import hudson.model.listeners.RunListener;
 import hudson.slaves.NodeProperty;
 import net.sf.json.JSONArray;
@@ -73,7 +74,16 @@ public class BillingMemoBuilder extends RunListener<AbstractBuild> {
     public static class BuildHistory extends NodeProperty<MansionSlave> {
         private JSONArray builds = new JSONArray();
 
+        /**
+         * Did any of the builds succeed? Not a part of the memo.
+         */
+        private boolean successful;
+
         public void add(AbstractBuild run) {
+            Result r = run.getResult();
+            if (r!=null && r.isBetterOrEqualTo(Result.SUCCESS))
+                successful = true;
+
             String n = run.getClass().getName();
             if (!n.equals("hudson.maven.MavenBuild") &&  ! (run instanceof MatrixBuild)) {
                 JSONObject build = new JSONObject();
@@ -98,6 +108,14 @@ public class BillingMemoBuilder extends RunListener<AbstractBuild> {
             }
 
         }
+        public boolean isEmpty() {
+            return builds.isEmpty();
+        }
+
+        public boolean hasSuccessfulBuild() {
+            return successful;
+        }
+
         public JSONObject toJSONObject() {
             if (builds.size() == 0) {
                 return new JSONObject();
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One of the URLs a {@link MansionCloud} can reach the broker at, and how well it has been doing.
+ *
+ * <p>
+ * Requests are spread over the endpoints in proportion to how fast they have been responding,
+ * and an endpoint that keeps failing is left alone for a while.
+ */
+public class BrokerEndpoint {
+    private final URL url;
+
+    /**
+     * Exponentially weighted moving average of the time it takes to get a VM, in ms. 0 until we know.
+     */
+    private volatile double latency;
+
+    private volatile int consecutiveFailures;
+
+    private volatile long lastFailureAt;
+
+    /**
+     * What {@link BrokerProbe} has been seeing, keyed by the mansion type.
+     */
+    private final ConcurrentMap<String,BrokerProbe.History> probes = new ConcurrentHashMap<String, BrokerProbe.History>();
+
+    public BrokerEndpoint(URL url) {
+        this.url = url;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * URL of the broker for the given mansion type, under whatever path the endpoint URL has.
+     */
+    public URL getBrokerUrl(String mansionType) throws MalformedURLException {
+        return new URL(new URL(getNormalizedUrl()), mansionType + "/");
+    }
+
+    /**
+     * {@link #getUrl()} with a trailing slash, so that two endpoints on the same host only look alike
+     * if they are the same.
+     */
+    public String getNormalizedUrl() {
+        String base = url.toExternalForm();
+        if (!base.endsWith("/"))
+            base += '/';
+        return base;
+    }
+
+    public long getLatency() {
+        return (long)latency;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized void recordSuccess(long ms) {
+        latency = latency==0 ? ms : latency + (ms - latency) * SMOOTHING;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        lastFailureAt = System.currentTimeMillis();
+    }
+
+    /**
+     * An endpoint that failed several times in a row is unhealthy until it has had some rest.
+     */
+    public boolean isHealthy() {
+        return consecutiveFailures < UNHEALTHY_AFTER
+                || System.currentTimeMillis() > lastFailureAt + COOL_DOWN;
+    }
+
+    /**
+     * Does the endpoint answer the probe for the given mansion type?
+     * True until we know otherwise.
+     */
+    public boolean isReachable(String mansionType) {
+        BrokerProbe.History h = probes.get(mansionType);
+        return h==null || h.isUp();
+    }
+
+    public BrokerProbe.History getProbeHistory(String mansionType) {
+        BrokerProbe.History h = probes.get(mansionType);
+        if (h==null) {
+            probes.putIfAbsent(mansionType, new BrokerProbe.History(mansionType));
+            h = probes.get(mansionType);
+        }
+        return h;
+    }
+
+    public Collection<BrokerProbe.History> getProbeHistories() {
+        return probes.values();
+    }
+
+    /**
+     * Relative share of the requests this endpoint should get.
+     */
+    public double getWeight() {
+        double l = latency==0 ? DEFAULT_LATENCY : Math.max(latency, 1);
+        return isHealthy() ? 1/l : 0;
+    }
+
+    /**
+     * Picks one of the given endpoints at random, in proportion to their weight.
+     * If none of them is healthy, the one with the fewest failures is returned.
+     *
+     * @return null if the list is empty.
+     */
+    public static BrokerEndpoint pick(List<BrokerEndpoint> endpoints) {
+        double total = 0;
+        for (BrokerEndpoint e : endpoints)
+            total += e.getWeight();
+
+        if (total>0) {
+            double r = RANDOM.nextDouble()*total;
+            for (BrokerEndpoint e : endpoints) {
+                r -= e.getWeight();
+                if (r<0 && e.getWeight()>0)
+                    return e;
+            }
+        }
+
+        BrokerEndpoint best = null;
+        for (BrokerEndpoint e : endpoints) {
+            if (e.getWeight()>0)
+                return e;   // rounding error in the loop above
+            if (best==null || e.consecutiveFailures < best.consecutiveFailures)
+                best = e;
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        return url.toExternalForm();
+    }
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * How much a new measurement moves {@link #latency}.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Latency we assume of an endpoint we haven't heard from yet, in ms.
+     */
+    private static final double DEFAULT_LATENCY = 1000;
+
+    public static int UNHEALTHY_AFTER = Integer.getInteger(BrokerEndpoint.class.getName()+".unhealthyAfter", 3);
+
+    public static long COOL_DOWN = Long.getLong(BrokerEndpoint.class.getName()+".coolDown", TimeUnit.MINUTES.toMillis(1));
+}
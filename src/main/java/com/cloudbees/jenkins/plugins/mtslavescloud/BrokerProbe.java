@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplateList;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.LatencyWindow;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically pings every broker endpoint for every mansion type in use,
+ * so that we find out about an outage (and the end of it) without a real provisioning request having to fail.
+ *
+ * <p>
+ * An endpoint that fails the probe isn't picked for provisioning that type, and when it answers again
+ * its circuit breakers are closed right away instead of waiting out the back off.
+ *
+ * @see BrokerEndpoint#isReachable(String)
+ */
+@Extension
+public class BrokerProbe extends AsyncPeriodicWork {
+    public BrokerProbe() {
+        super("Mansion Broker Probe");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return INTERVAL>0 ? INTERVAL : TimeUnit.HOURS.toMillis(1);
+    }
+
+    //@Override // TODO uncomment once Jenkins 1.551+
+    protected Level getNormalLoggingLevel() {
+        return Level.FINE;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        if (INTERVAL<=0)
+            return;
+
+        for (MansionCloud cloud : Jenkins.getInstance().clouds.getAll(MansionCloud.class)) {
+            Set<String> types = new LinkedHashSet<String>();
+            for (SlaveTemplate t : SlaveTemplateList.get().getItems()) {
+                if (t.isEnabled() && t.getMansion()==cloud)
+                    types.add(t.getMansionType());
+            }
+
+            for (BrokerEndpoint e : cloud.getBrokerEndpoints()) {
+                for (String type : types) {
+                    History h = e.getProbeHistory(type);
+                    long start = System.currentTimeMillis();
+                    boolean up;
+                    try {
+                        up = ping(e.getBrokerUrl(type));
+                    } catch (IOException x) {
+                        LOGGER.log(Level.FINE, "Probe of "+e+" for "+type+" failed", x);
+                        up = false;
+                    }
+                    if (h.record(up, System.currentTimeMillis()-start)) {
+                        LOGGER.log(Level.INFO, "{0} is answering again for {1}", new Object[]{e, type});
+                        cloud.onBrokerRecovered(e, type);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Any answer that isn't a server error means the broker is up, even if it doesn't like our anonymous request.
+     */
+    private boolean ping(URL url) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setConnectTimeout(TIMEOUT);
+        con.setReadTimeout(TIMEOUT);
+        con.setUseCaches(false);
+        try {
+            return con.getResponseCode() < 500;
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Recent probe results of one endpoint for one mansion type.
+     */
+    public static final class History {
+        public final String mansionType;
+
+        /**
+         * Round trip times of the recent successful probes.
+         */
+        private final LatencyWindow latencies = new LatencyWindow(SAMPLES);
+
+        /**
+         * Ring buffer of whether the recent probes succeeded.
+         */
+        private final boolean[] outcomes = new boolean[SAMPLES];
+        private int next, count;
+
+        private volatile boolean up = true;
+
+        public History(String mansionType) {
+            this.mansionType = mansionType;
+        }
+
+        /**
+         * @return true if this probe brought the endpoint back up.
+         */
+        /*package*/ synchronized boolean record(boolean up, long latency) {
+            outcomes[next] = up;
+            next = (next+1)%outcomes.length;
+            count = Math.min(count+1, outcomes.length);
+            if (up)
+                latencies.record(latency);
+
+            boolean recovered = up && !this.up;
+            this.up = up;
+            return recovered;
+        }
+
+        /**
+         * Did the last probe succeed? True if we haven't probed yet.
+         */
+        public boolean isUp() {
+            return up;
+        }
+
+        /**
+         * Round trip time of the successful probes at the given percentile, in ms.
+         *
+         * @param p 0-100
+         * @return -1 if no probe has succeeded recently.
+         */
+        public long getPercentile(int p) {
+            return latencies.getPercentile(p);
+        }
+
+        /**
+         * Percentage of the recent probes that succeeded, or -1 if we haven't probed yet.
+         */
+        public synchronized int getAvailability() {
+            if (count==0)   return -1;
+            int n=0;
+            for (int i=0; i<count; i++) {
+                if (outcomes[i])
+                    n++;
+            }
+            return n*100/count;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BrokerProbe.class.getName());
+
+    /**
+     * How often to probe, in ms. 0 or less disables the probe.
+     */
+    public static long INTERVAL = Long.getLong(BrokerProbe.class.getName()+".interval", TimeUnit.SECONDS.toMillis(30));
+
+    /**
+     * How long to wait for the broker to answer a probe, in ms.
+     */
+    public static int TIMEOUT = Integer.getInteger(BrokerProbe.class.getName()+".timeout", 10000);
+
+    /**
+     * Number of recent probes the percentiles and the availability are computed from.
+     */
+    public static int SAMPLES = Integer.getInteger(BrokerProbe.class.getName()+".samples", 60);
+}
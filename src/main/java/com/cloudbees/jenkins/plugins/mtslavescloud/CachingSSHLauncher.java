@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHAuthenticator;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.Session;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.plugins.sshslaves.JavaProvider;
+import hudson.plugins.sshslaves.SSHLauncher;
+import hudson.slaves.SlaveComputer;
+import hudson.util.StreamCopyThread;
+import jenkins.model.Jenkins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link SSHLauncher} that keeps the agent jar on a persistent file system of the VM,
+ * so that slaves set up from a snapshot of it don't need the jar sent over again.
+ *
+ * <p>
+ * The jar is only copied when its checksum doesn't match that of the master's jar,
+ * which is to say when the remoting version of the master changes.
+ * If anything goes wrong on the way, such as the cache directory not being writable or
+ * no java being found, we fall back to the regular launch.
+ */
+public class CachingSSHLauncher extends SSHLauncher {
+    /**
+     * Directory on a persistent file system to keep the agent jar in.
+     */
+    private final String cacheDir;
+
+    private transient Connection connection;
+
+    public CachingSSHLauncher(String host, int port, StandardUsernameCredentials credentials, String jvmOptions,
+                              int launchTimeoutSeconds, int maxNumRetries, int retryWaitTime, String cacheDir) {
+        super(host, port, credentials, jvmOptions, null, null, null, null, launchTimeoutSeconds, maxNumRetries, retryWaitTime);
+        this.cacheDir = cacheDir;
+    }
+
+    public String getCacheDir() {
+        return cacheDir;
+    }
+
+    @Override
+    public synchronized void launch(SlaveComputer computer, TaskListener listener) throws InterruptedException {
+        try {
+            if (launchFromCache(computer, listener))
+                return;
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to launch with the cached agent jar"));
+            LOGGER.log(Level.FINE, "Failed to launch "+computer.getName()+" with the cached agent jar", e);
+        }
+        listener.getLogger().println("Falling back to copying the agent jar");
+        closeConnection();
+        super.launch(computer, listener);
+    }
+
+    /**
+     * @return false if we should launch the regular way.
+     */
+    private boolean launchFromCache(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        Node node = computer.getNode();
+        if (node==null)
+            return false;
+
+        byte[] jar = Jenkins.getInstance().getJnlpJars("slave.jar").readFully();
+        String checksum = Util.getDigestOf(new ByteArrayInputStream(jar));
+
+        Connection c = connection = new Connection(getHost(), getPort());
+        c.connect(null, CONNECT_TIMEOUT, CONNECT_TIMEOUT);
+        if (!SSHAuthenticator.newInstance(c, getCredentials()).authenticate(listener)) {
+            listener.error("Failed to authenticate as "+getCredentials().getUsername());
+            return false;
+        }
+
+        String java = findJava(computer, listener, c);
+        if (java==null) {
+            listener.getLogger().println("Couldn't find java to run the cached agent jar with");
+            return false;
+        }
+
+        if (c.exec("mkdir -p '"+cacheDir+"' && test -w '"+cacheDir+"'", listener.getLogger())!=0) {
+            listener.getLogger().println(cacheDir+" isn't writable");
+            return false;
+        }
+
+        String jarFile = join(cacheDir, "slave.jar");
+        ByteArrayOutputStream md5 = new ByteArrayOutputStream();
+        // md5sum on Linux, md5 on OS X
+        c.exec("md5sum '"+jarFile+"' 2>/dev/null || md5 -q '"+jarFile+"' 2>/dev/null", md5);
+        if (md5.toString().trim().startsWith(checksum)) {
+            listener.getLogger().println("Using the cached agent jar at "+jarFile);
+        } else {
+            listener.getLogger().println("Caching the agent jar at "+jarFile);
+            // so that a copy cut short doesn't leave a broken jar behind for the next slave to pick up
+            new SCPClient(c).put(jar, "slave.jar.tmp", cacheDir, "0644");
+            if (c.exec("mv -f '"+join(cacheDir, "slave.jar.tmp")+"' '"+jarFile+"'", listener.getLogger())!=0)
+                throw new IOException("Failed to move the agent jar into place at "+jarFile);
+        }
+
+        String workDir = node.getRemoteFS();
+        Session session = c.openSession();
+        session.execCommand("mkdir -p '"+workDir+"' && cd '"+workDir+"' && exec '"+java+"' "+Util.fixNull(getJvmOptions())+" -jar '"+jarFile+"'");
+        new StreamCopyThread("stderr of "+computer.getName(), session.getStderr(), listener.getLogger()).start();
+        computer.setChannel(session.getStdout(), session.getStdin(), listener.getLogger(), null);
+        return true;
+    }
+
+    /**
+     * Uses the java configured for this launcher, or else the first one the {@link JavaProvider}s know of
+     * that runs on the slave, the way {@link SSHLauncher} does short of installing a JDK.
+     *
+     * @return null if there's no usable java.
+     */
+    private String findJava(SlaveComputer computer, TaskListener listener, Connection c) throws IOException, InterruptedException {
+        if (Util.fixEmptyAndTrim(getJavaPath())!=null)
+            return getJavaPath();
+        for (JavaProvider p : JavaProvider.all()) {
+            for (String java : p.getJavas(computer, listener, c)) {
+                if (c.exec("'"+java+"' -version", new ByteArrayOutputStream())==0)
+                    return java;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Directory to keep the agent jar in, on the given persistent file system.
+     */
+    public static String cacheDirOn(String fileSystem) {
+        return join(fileSystem, CACHE_DIR_NAME);
+    }
+
+    private static String join(String dir, String name) {
+        return dir.endsWith("/") ? dir+name : dir+'/'+name;
+    }
+
+    @Override
+    public synchronized void afterDisconnect(SlaveComputer computer, TaskListener listener) {
+        closeConnection();
+        super.afterDisconnect(computer, listener);
+    }
+
+    private void closeConnection() {
+        if (connection!=null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CachingSSHLauncher.class.getName());
+
+    /**
+     * Whether to use this launcher for templates that have a persistent file system.
+     */
+    public static boolean ENABLED = Boolean.valueOf(System.getProperty(CachingSSHLauncher.class.getName()+".enabled", "true"));
+
+    /**
+     * Name of the directory on the persistent file system to keep the agent jar in.
+     */
+    public static String CACHE_DIR_NAME = System.getProperty(CachingSSHLauncher.class.getName()+".cacheDirName", ".jenkins-agent");
+
+    private static final int CONNECT_TIMEOUT = 60000;
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import com.cloudbees.mtslaves.client.TooManyVirtualMachinesException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps count of the VMs a {@link MansionCloud} (and thus its account) has by type and size,
+ * so that we can tell we are at the limit without asking the broker and getting a
+ * {@link TooManyVirtualMachinesException} back.
+ *
+ * <p>
+ * The broker doesn't tell us what the limit is, so we learn it: when it refuses a VM, whatever we
+ * have at that point is the limit. A learned limit is forgotten when the quota problem of that refusal
+ * lapses, or after {@link #LIMIT_TTL}, so that we notice when it's raised. A VM going away only frees up
+ * its own slot under the limit; it doesn't mean the limit itself has changed.
+ */
+public class CapacityLedger {
+    public enum Phase { PROVISIONING, ONLINE, DISPOSING }
+
+    /**
+     * Number of VMs in each {@link Phase}, keyed by "vmType" and by "vmType/size".
+     */
+    private final ConcurrentMap<String,AtomicIntegerArray> counts = new ConcurrentHashMap<String,AtomicIntegerArray>();
+
+    /**
+     * Learned limits, keyed the same way as {@link #counts}.
+     */
+    private final ConcurrentMap<String,Limit> limits = new ConcurrentHashMap<String,Limit>();
+
+    private static final class Limit {
+        final int max;
+        /**
+         * When do we stop trusting this limit, in ms since the epoch?
+         */
+        final long expiresAt;
+
+        Limit(int max, long expiresAt) {
+            this.max = max;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    /**
+     * A VM we are counting, from the moment we decide to ask for it until it's gone.
+     */
+    public final class Lease {
+        private final String vmType, size;
+        private final AtomicReference<Phase> phase = new AtomicReference<Phase>(Phase.PROVISIONING);
+
+        private Lease(String vmType, String size) {
+            this.vmType = vmType;
+            this.size = size;
+            add(Phase.PROVISIONING, 1);
+        }
+
+        public Phase getPhase() {
+            return phase.get();
+        }
+
+        public void moveTo(Phase p) {
+            Phase old = phase.get();
+            if (old!=null && old!=p && phase.compareAndSet(old, p)) {
+                add(old, -1);
+                add(p, 1);
+            }
+        }
+
+        /**
+         * The VM is gone, or we never got it. Calling this more than once is harmless.
+         */
+        public void release() {
+            Phase old = phase.getAndSet(null);
+            if (old!=null)
+                add(old, -1);
+        }
+
+        private void add(Phase p, int delta) {
+            count(vmType).addAndGet(p.ordinal(), delta);
+            count(scopeOf(vmType, size)).addAndGet(p.ordinal(), delta);
+        }
+    }
+
+    /**
+     * Starts counting a VM that we are about to ask for.
+     */
+    public Lease lease(String vmType, String size) {
+        return new Lease(vmType, size);
+    }
+
+    private AtomicIntegerArray count(String scope) {
+        AtomicIntegerArray a = counts.get(scope);
+        if (a==null) {
+            counts.putIfAbsent(scope, new AtomicIntegerArray(Phase.values().length));
+            a = counts.get(scope);
+        }
+        return a;
+    }
+
+    /**
+     * Number of VMs in the given phase.
+     *
+     * @param size
+     *      null to count all the sizes.
+     */
+    public int getCount(String vmType, String size, Phase p) {
+        return getCount(scopeOf(vmType, size), p);
+    }
+
+    private int getCount(String scope, Phase p) {
+        AtomicIntegerArray a = counts.get(scope);
+        return a==null ? 0 : a.get(p.ordinal());
+    }
+
+    private int getTotal(String scope) {
+        AtomicIntegerArray a = counts.get(scope);
+        if (a==null)    return 0;
+        int n = 0;
+        for (int i=0; i<a.length(); i++)
+            n += a.get(i);
+        return n;
+    }
+
+    /**
+     * How many more VMs of the given type and size can we ask for before we hit the limit we know of?
+     *
+     * @return {@link Integer#MAX_VALUE} if we don't know of any limit.
+     */
+    public int getHeadroom(String vmType, String size) {
+        return Math.min(getHeadroom(vmType), getHeadroom(scopeOf(vmType, size)));
+    }
+
+    private int getHeadroom(String scope) {
+        Limit l = limits.get(scope);
+        if (l==null)
+            return Integer.MAX_VALUE;
+        if (l.isExpired()) {
+            limits.remove(scope, l);
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(0, l.max - getTotal(scope));
+    }
+
+    /**
+     * The broker said we have too many VMs, so what we have other than the one just refused is the limit.
+     *
+     * @param until
+     *      When the quota problem for this refusal lapses, in ms since the epoch, or 0 if there's none.
+     *      We forget the limit at the same time.
+     */
+    public void onRejected(TooManyVirtualMachinesException e, String vmType, String size, long until) {
+        String t = e.getVMType()!=null ? e.getVMType() : vmType;
+        String scope = e.getHardwareSize()!=null ? scopeOf(t, e.getHardwareSize()) : t;
+        // other VMs might be getting refused at the same time, but those we already have are within the limit
+        int inUse = getCount(scope, Phase.ONLINE) + getCount(scope, Phase.DISPOSING);
+        int max = Math.max(inUse, getTotal(scope)-1);
+        if (until<=0)
+            until = System.currentTimeMillis()+LIMIT_TTL;
+        limits.put(scope, new Limit(max, until));
+        LOGGER.log(Level.INFO, "Learned that we can have up to {0} VMs of {1}", new Object[]{max, scope});
+    }
+
+    private static String scopeOf(String vmType, String size) {
+        return size==null ? vmType : vmType+'/'+size;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CapacityLedger.class.getName());
+
+    /**
+     * How long do we trust a learned limit when there's no quota problem to go with it? In ms.
+     */
+    public static long LIMIT_TTL = Long.getLong(CapacityLedger.class.getName()+".limitTtl", TimeUnit.MINUTES.toMillis(30));
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate.HedgePhase;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.Hedge;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.LatencyWindow;
+
+import javax.annotation.CheckForNull;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when a VM request of a {@link MansionCloud} is slow enough to {@linkplain Hedge hedge},
+ * and keeps the extra VMs that costs us within a budget.
+ *
+ * <p>
+ * A request is slow if it takes longer than {@link #PERCENTILE} percent of the recent ones of the same template took.
+ * Every VM we provision earns a fraction of a hedge and every hedge spends one, so that on the long run
+ * no more than {@link #RATIO} percent of the VMs are extra ones, with at most {@link #BURST} of them in a row.
+ *
+ * @see SlaveTemplate#getHedgePhase()
+ */
+public class Hedging {
+    private final ConcurrentMap<String,LatencyWindow> latencies = new ConcurrentHashMap<String, LatencyWindow>();
+
+    /**
+     * Number of hedges we can afford right now.
+     */
+    private double credit = BURST;
+
+    private final AtomicInteger hedges = new AtomicInteger(), wins = new AtomicInteger();
+
+    /**
+     * How long it recently took slaves of the given template to reach the given phase.
+     */
+    public LatencyWindow getLatency(SlaveTemplate st, HedgePhase phase) {
+        String key = st.getFullName()+'/'+phase;
+        LatencyWindow w = latencies.get(key);
+        if (w==null) {
+            latencies.putIfAbsent(key, new LatencyWindow(SAMPLES));
+            w = latencies.get(key);
+        }
+        return w;
+    }
+
+    /**
+     * How long to wait for a slave of the given template to reach the given phase before we hedge, in ms.
+     *
+     * @return negative if the template doesn't want us to hedge in this phase.
+     */
+    public long getDelay(SlaveTemplate st, HedgePhase phase) {
+        if (st.getHedgePhase()!=phase)
+            return -1;
+        LatencyWindow w = getLatency(st, phase);
+        if (w.getCount()<MIN_SAMPLES)
+            return DEFAULT_DELAY;   // we don't know what's usual yet
+        return Math.max(w.getPercentile(PERCENTILE), MIN_DELAY);
+    }
+
+    /**
+     * Called for every VM we get, to earn the credit to hedge.
+     */
+    public synchronized void onProvisioned() {
+        credit = Math.min(BURST, credit + RATIO/100.0);
+    }
+
+    /**
+     * Takes out a hedge if it's within the budget and the VM limit.
+     *
+     * @return
+     *      Counts the extra VM until it's discarded. Null if we shouldn't hedge.
+     */
+    public synchronized @CheckForNull CapacityLedger.Lease tryHedge(CapacityLedger ledger, String vmType, String size) {
+        if (credit<1 || ledger.getHeadroom(vmType, size)<=0)
+            return null;
+        credit--;
+        hedges.incrementAndGet();
+        return ledger.lease(vmType, size);
+    }
+
+    /**
+     * Called when the extra VM came first.
+     */
+    public void onBackupWon() {
+        wins.incrementAndGet();
+    }
+
+    /**
+     * Number of hedges taken out so far.
+     */
+    public int getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Number of hedges that paid off.
+     */
+    public int getWinCount() {
+        return wins.get();
+    }
+
+    /**
+     * Percentile of the recent latencies beyond which we hedge.
+     */
+    public static int PERCENTILE = Integer.getInteger(Hedging.class.getName()+".percentile", 95);
+
+    /**
+     * Percentage of extra VMs we are willing to pay for.
+     */
+    public static int RATIO = Integer.getInteger(Hedging.class.getName()+".ratio", 10);
+
+    /**
+     * Maximum number of hedges in a row.
+     */
+    public static int BURST = Integer.getInteger(Hedging.class.getName()+".burst", 3);
+
+    /**
+     * Number of recent latencies to keep per template and phase.
+     */
+    public static int SAMPLES = Integer.getInteger(Hedging.class.getName()+".samples", 100);
+
+    /**
+     * Number of latencies we need before we trust the percentile.
+     */
+    public static int MIN_SAMPLES = Integer.getInteger(Hedging.class.getName()+".minSamples", 20);
+
+    /**
+     * How long to wait before hedging while we don't have enough latencies, in ms.
+     */
+    public static long DEFAULT_DELAY = Long.getLong(Hedging.class.getName()+".defaultDelay", TimeUnit.MINUTES.toMillis(3));
+
+    /**
+     * Never hedge sooner than this, in ms, so that a template that's always fast doesn't hedge on every hiccup.
+     */
+    public static long MIN_DELAY = Long.getLong(Hedging.class.getName()+".minDelay", TimeUnit.SECONDS.toMillis(15));
+}
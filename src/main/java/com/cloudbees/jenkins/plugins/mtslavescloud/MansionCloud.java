@@ -32,12 +32,16 @@ import com.cloudbees.api.cr.Credential;
 import com.cloudbees.api.oauth.OauthClientException;
 import com.cloudbees.api.oauth.TokenRequest;
 import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate.HedgePhase;
 import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplateList;
-import com.cloudbees.jenkins.plugins.mtslavescloud.util.BackOffCounter;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.CircuitBreaker;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.Hedge;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.LatencyWindow;
 import com.cloudbees.mtslaves.client.BrokerRef;
 import com.cloudbees.mtslaves.client.HardwareSpec;
 import com.cloudbees.mtslaves.client.QuotaExceededException;
 import com.cloudbees.mtslaves.client.TooManyVirtualMachinesException;
+import com.cloudbees.mtslaves.client.VirtualMachineRef;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.cloudbees.CloudBeesAccount;
 import com.cloudbees.plugins.credentials.cloudbees.CloudBeesUser;
@@ -58,11 +62,14 @@ import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
+import javax.annotation.CheckForNull;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -94,11 +101,29 @@ public class MansionCloud extends AbstractCloudImpl {
     private String account;
 
     /**
-     * Which broker is working and which one is not?
+     * Other URLs of the same broker service to spread the requests over, one per line. Null if none.
      */
-    private transient /*almost final*/ ConcurrentMap<String/*broker ID*/,BackOffCounter> backoffCounters;
+    private String additionalBrokers;
+
+    /**
+     * {@link #broker} and {@link #additionalBrokers}, along with how they've been doing.
+     */
+    private transient volatile List<BrokerEndpoint> brokerEndpoints;
+
+    /**
+     * Which broker is working and which one is not, for each kind of slaves?
+     */
+    private transient /*almost final*/ ConcurrentMap<String/*breaker ID*/,CircuitBreaker> circuitBreakers;
 
     private transient /*almost final*/ QuotaProblems quotaProblems;
+
+    private transient /*almost final*/ SnapshotAffinity snapshotAffinity;
+
+    private transient /*almost final*/ CapacityLedger capacityLedger;
+
+    private transient /*almost final*/ Hedging hedging;
+
+    private transient /*almost final*/ LatencyWindow bootToOnline;
     /**
      * So long as {@link CloudBeesUser} doesn't change, we'll reuse the same {@link TokenGenerator}
      */
@@ -170,8 +195,13 @@ public class MansionCloud extends AbstractCloudImpl {
     }
 
     private void initTransient() {
-        backoffCounters = new ConcurrentHashMap<String, BackOffCounter>();
+        initBrokerEndpoints();
+        circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
         quotaProblems = new QuotaProblems();
+        snapshotAffinity = new SnapshotAffinity();
+        capacityLedger = new CapacityLedger();
+        hedging = new Hedging();
+        bootToOnline = new LatencyWindow(100);
         inProgressSet = new PlannedMansionSlaveSet();
     }
 
@@ -195,6 +225,63 @@ public class MansionCloud extends AbstractCloudImpl {
         return broker;
     }
 
+    public String getAdditionalBrokers() {
+        return additionalBrokers;
+    }
+
+    @DataBoundSetter
+    public void setAdditionalBrokers(String additionalBrokers) {
+        this.additionalBrokers = Util.fixEmptyAndTrim(additionalBrokers);
+        initBrokerEndpoints();
+    }
+
+    private void initBrokerEndpoints() {
+        List<BrokerEndpoint> r = new ArrayList<BrokerEndpoint>();
+        r.add(new BrokerEndpoint(broker));
+        if (additionalBrokers!=null) {
+            for (String s : additionalBrokers.split("[\r\n]+")) {
+                s = s.trim();
+                if (s.length()==0)  continue;
+                try {
+                    r.add(new BrokerEndpoint(new URL(s)));
+                } catch (MalformedURLException e) {
+                    LOGGER.log(WARNING, "Ignoring malformed broker URL "+s, e);
+                }
+            }
+        }
+        brokerEndpoints = Collections.unmodifiableList(r);
+    }
+
+    /**
+     * All the endpoints we can reach the broker at.
+     */
+    public List<BrokerEndpoint> getBrokerEndpoints() {
+        return brokerEndpoints;
+    }
+
+    /**
+     * Picks the endpoint to ask for a VM of the given template and size, among those that answer {@link BrokerProbe}
+     * and aren't backing off.
+     * Faster and healthier endpoints are more likely to be picked.
+     *
+     * @return null if all of them are backing off.
+     */
+    protected @CheckForNull BrokerEndpoint selectBroker(SlaveTemplate st, HardwareSpec box) {
+        List<BrokerEndpoint> candidates = new ArrayList<BrokerEndpoint>();
+        for (BrokerEndpoint e : brokerEndpoints) {
+            if (e.isReachable(st.getMansionType()) && !getCircuitBreaker(e, st, box).isBackOffInEffect())
+                candidates.add(e);
+        }
+        return BrokerEndpoint.pick(candidates);
+    }
+
+    /**
+     * Are all the endpoints backing off from provisioning slaves of the given template and size?
+     */
+    public boolean isBackOffInEffect(SlaveTemplate st, HardwareSpec box) {
+        return selectBroker(st, box)==null;
+    }
+
     public String getAccount() {
         return account;
     }
@@ -245,38 +332,51 @@ public class MansionCloud extends AbstractCloudImpl {
             LOGGER.log(Level.FINE, "Slave template is disabled {0}", st);
             return Collections.emptyList();
         }
-        if (getBackOffCounter(st).isBackOffInEffect()) {
-            LOGGER.log(Level.FINE, "Back off in effect for {0}", st);
-            return Collections.emptyList();
-        }
 
-        final HardwareSpec box = getBoxOf(st, label);
+        final HardwareSpec requested = getBoxOf(st, label);
+        final HardwareSpec box = selectBox(st, requested);
 
         if (getQuotaProblems().isBlocked(box, st)) {
             LOGGER.log(Level.FINE, "Provisioning of {0} blocked by quota problems.", st);
             return Collections.emptyList();
         }
 
-        String compat="";
-        if (st.getLabel().equals(SlaveTemplateList.M1_COMPATIBLE)) {
-            compat = " m1."+box.size;
+        int headroom = capacityLedger.getHeadroom(st.getMansionType(), box.size);
+        if (headroom<=0) {
+            LOGGER.log(Level.FINE, "Provisioning of {0} deferred as we are at the limit of {1} VMs.", new Object[]{st, box.size});
+            return Collections.emptyList();
         }
 
-        if (box.size.equals("large")) {
-            compat += " standard";
-        } else if (box.size.equals("xlarge")) {
-            compat += " hi-speed";
+        final BrokerEndpoint endpoint = selectBroker(st, box);
+        final CircuitBreaker breaker = endpoint==null ? null : getCircuitBreaker(endpoint, st, box);
+        if (breaker==null || !breaker.tryAcquire()) {
+            LOGGER.log(Level.FINE, "Back off in effect for {0}", st);
+            return Collections.emptyList();
+        }
+
+        String labels = st.getLabel()+getSizeLabels(st, box.size);
+        if (!box.size.equals(requested.size)) {
+            // so that the builds waiting for the requested size can use this slave
+            labels += getSizeLabels(st, requested.size);
         }
-        label = Jenkins.getInstance().getLabel(st.getLabel()+" "+box.size+compat);
+        label = Jenkins.getInstance().getLabel(labels);
 
         int allowedSlaveCreation = Math.min(MAX_IN_PROVISIONING_SLAVE,
                 MAX_IN_PROVISIONING_SLAVE - getInProgressSet().getInProvisioningCount());
-        int workloadToPlan = Math.min(excessWorkload, allowedSlaveCreation);
+        int executors = st.getNumExecutors(box.size);
+        int vmsNeeded = (excessWorkload + executors - 1) / executors;
+        int workloadToPlan = Math.min(Math.min(vmsNeeded, allowedSlaveCreation), headroom);
+        if (breaker.getState()==CircuitBreaker.State.HALF_OPEN)
+            workloadToPlan = Math.min(workloadToPlan, 1);   // just the probe
+        if (workloadToPlan<=0) {
+            breaker.release();  // we aren't sending the probe after all
+            return Collections.emptyList();
+        }
 
         final Queue<PlannedMansionSlave> queue = new ArrayBlockingQueue<PlannedMansionSlave>(excessWorkload);
         List<PlannedNode> r = new ArrayList<PlannedNode>();
         for (int i = 0; i < workloadToPlan; i++) {
-            PlannedMansionSlave plan = new PlannedMansionSlave(label, st);
+            PlannedMansionSlave plan = new PlannedMansionSlave(label, st, box, requested, breaker);
             queue.add(plan);
             r.add(plan);
         }
@@ -297,25 +397,35 @@ public class MansionCloud extends AbstractCloudImpl {
                                 Thread.currentThread().setName(
                                         String.format("Provisioning %s workload %s of %s since %tc / %s",
                                                 st.getLabel(), i++, excessWorkload, new Date(), oldName));
-                                URL broker = new URL(MansionCloud.this.broker, "/" + st.getMansionType() + "/");
-                                slave.onVirtualMachineProvisioned(
-                                        new BrokerRef(broker, createAccessToken(broker)).createVirtualMachine(box));
+                                URL broker = endpoint.getBrokerUrl(st.getMansionType());
+                                BrokerRef br = new BrokerRef(broker, createAccessToken(broker));
+                                VirtualMachineRef vm = allocate(br, endpoint, st, box);
+                                for (int attempts=0; snapshotAffinity.shouldRetry(MansionCloud.this, st, box, vm, attempts); attempts++) {
+                                    vm = allocate(br, endpoint, st, box);
+                                }
+                                slave.onVirtualMachineProvisioned(vm);
+                                hedging.onProvisioned();
                             } catch (IOException e) {
-                                handleException(st, "Failed to provision from " + this, e);
+                                endpoint.recordFailure();
+                                handleException(breaker, "Failed to provision from " + endpoint, e);
                                 slave.onProvisioningFailure(e);
                                 throw e;
                             } catch (OauthClientException e) {
-                                handleException(st, "Authentication error from " + this, e);
+                                handleException(breaker, "Authentication error from " + endpoint, e);
                                 slave.onProvisioningFailure(e);
                                 throw e;
                             } catch (TooManyVirtualMachinesException e) {
-                                quotaProblems.addTooManyVMProblem(e);
+                                QuotaProblems.QuotaProblem p = quotaProblems.addTooManyVMProblem(e);
+                                capacityLedger.onRejected(e, st.getMansionType(), box.size, p==null ? 0 : p.getExpiresAt());
                                 slave.onProvisioningFailure(e);
                                 throw e;
                             } catch (QuotaExceededException e) {
                                 quotaProblems.addProblem(e);
                                 slave.onProvisioningFailure(e);
                                 throw e;
+                            } catch (Exception e) {
+                                slave.onProvisioningFailure(e);
+                                throw e;
                             }
                         }
                     } catch (Error e) {
@@ -338,6 +448,81 @@ public class MansionCloud extends AbstractCloudImpl {
         return r;
     }
 
+    /**
+     * Asks the broker for a VM, and if the template wants it and that's taking much longer than usual,
+     * asks for another one and keeps whichever comes first.
+     */
+    private VirtualMachineRef allocate(final BrokerRef br, final BrokerEndpoint endpoint, final SlaveTemplate st, final HardwareSpec box) throws Exception {
+        long delay = hedging.getDelay(st, HedgePhase.ALLOCATED);
+        if (delay<0) {
+            long start = System.currentTimeMillis();
+            VirtualMachineRef vm = br.createVirtualMachine(box);
+            endpoint.recordSuccess(System.currentTimeMillis()-start);
+            return vm;
+        }
+
+        final LatencyWindow latency = hedging.getLatency(st, HedgePhase.ALLOCATED);
+        return new Hedge<VirtualMachineRef>() {
+            private volatile CapacityLedger.Lease lease;
+
+            @Override
+            protected VirtualMachineRef attempt(boolean backup) throws Exception {
+                long start = System.currentTimeMillis();
+                VirtualMachineRef vm = br.createVirtualMachine(box);
+                long elapsed = System.currentTimeMillis()-start;
+                endpoint.recordSuccess(elapsed);
+                latency.record(elapsed);
+                return vm;
+            }
+
+            @Override
+            protected boolean shouldHedge() {
+                lease = hedging.tryHedge(capacityLedger, st.getMansionType(), box.size);
+                if (lease==null)
+                    return false;
+                LOGGER.log(Level.INFO, "{0} is slow to allocate a VM for {1}, asking for another one", new Object[]{endpoint, st});
+                return true;
+            }
+
+            @Override
+            protected void abandon(boolean backup) {
+                if (!backup)
+                    hedging.onBackupWon();
+            }
+
+            @Override
+            protected void discard(VirtualMachineRef loser) {
+                if (loser!=null)
+                    disposeQuietly(loser);
+                if (lease!=null)
+                    lease.release();
+            }
+        }.run(Computer.threadPoolForRemoting, delay);
+    }
+
+    /**
+     * Allocates a VM that races against a slow one, from whichever endpoint we'd pick for a new one.
+     */
+    /*package*/ VirtualMachineRef allocateBackup(SlaveTemplate st, HardwareSpec box) throws Exception {
+        BrokerEndpoint endpoint = selectBroker(st, box);
+        if (endpoint==null)
+            throw new IOException("No broker endpoint is available for "+st);
+        URL broker = endpoint.getBrokerUrl(st.getMansionType());
+        long start = System.currentTimeMillis();
+        VirtualMachineRef vm = new BrokerRef(broker, createAccessToken(broker)).createVirtualMachine(box);
+        endpoint.recordSuccess(System.currentTimeMillis()-start);
+        return vm;
+    }
+
+    /*package*/ static void disposeQuietly(VirtualMachineRef vm) {
+        try {
+            vm.dispose();
+            LOGGER.log(Level.FINE, "Disposed {0}", vm.url);
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Failed to dispose "+vm.url, e);
+        }
+    }
+
     /**
      * Figure out the size of the box to provision.
      *
@@ -355,6 +540,49 @@ public class MansionCloud extends AbstractCloudImpl {
         throw new AssertionError("Size computation problem with label: "+label);
     }
 
+    /**
+     * Picks the size of the box to provision when the given one is asked for.
+     *
+     * If the requested size is blocked by quota problems, back off, or the VM limit, and the template allows it,
+     * we {@linkplain SlaveTemplate#getFallbackSizes(String) fall back} to the first size that isn't.
+     * Otherwise the requested size is returned as is.
+     */
+    protected HardwareSpec selectBox(SlaveTemplate st, HardwareSpec requested) {
+        if (isAvailable(st, requested))
+            return requested;
+        for (String size : st.getFallbackSizes(requested.size)) {
+            HardwareSpec alt = new HardwareSpec(size);
+            if (isAvailable(st, alt)) {
+                LOGGER.log(Level.FINE, "Falling back from {0} to {1} for {2}", new Object[]{requested.size, size, st});
+                return alt;
+            }
+        }
+        return requested;
+    }
+
+    private boolean isAvailable(SlaveTemplate st, HardwareSpec box) {
+        return !quotaProblems.isBlocked(box, st)
+                && !isBackOffInEffect(st, box)
+                && capacityLedger.getHeadroom(st.getMansionType(), box.size)>0;
+    }
+
+    /**
+     * Labels that tell the size of slaves, to be appended to the label of the template.
+     */
+    private static String getSizeLabels(SlaveTemplate st, String size) {
+        String compat="";
+        if (st.getLabel().equals(SlaveTemplateList.M1_COMPATIBLE)) {
+            compat = " m1."+size;
+        }
+
+        if (size.equals("large")) {
+            compat += " standard";
+        } else if (size.equals("xlarge")) {
+            compat += " hi-speed";
+        }
+        return " "+size+compat;
+    }
+
     /**
      * Handle errors which should cause a backoff and
      * be displayed to users.
@@ -362,10 +590,10 @@ public class MansionCloud extends AbstractCloudImpl {
      * @param msg Message for the log
      * @param e Exception to display to the user
      */
-    private <T extends Exception> T handleException(SlaveTemplate st, String msg, T e) {
+    private <T extends Exception> T handleException(CircuitBreaker breaker, String msg, T e) {
         LOGGER.log(WARNING, msg,e);
         this.lastException = e;
-        getBackOffCounter(st).recordError();
+        breaker.recordError();
         return e;
     }
 
@@ -373,14 +601,33 @@ public class MansionCloud extends AbstractCloudImpl {
         return lastException;
     }
 
-    public Collection<BackOffCounter> getBackOffCounters() {
-        return Collections.unmodifiableCollection(backoffCounters.values());
+    public Collection<CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableCollection(circuitBreakers.values());
     }
 
     public QuotaProblems getQuotaProblems() {
         return quotaProblems;
     }
 
+    public SnapshotAffinity getSnapshotAffinity() {
+        return snapshotAffinity;
+    }
+
+    public CapacityLedger getCapacityLedger() {
+        return capacityLedger;
+    }
+
+    public Hedging getHedging() {
+        return hedging;
+    }
+
+    /**
+     * How long it recently took slaves to come online after their VM booted, in ms.
+     */
+    public LatencyWindow getBootToOnline() {
+        return bootToOnline;
+    }
+
     public boolean isProvisioning() {
         for (PlannedMansionSlave future: getInProgressSet()) {
             if (future.isProvisioning()) {
@@ -390,26 +637,47 @@ public class MansionCloud extends AbstractCloudImpl {
         return false;
     }
 
-    protected BackOffCounter getBackOffCounter(SlaveTemplate st) {
-        return getBackOffCounter(st.getMansionType());
+    /**
+     * Gets the circuit breaker for provisioning slaves of the given template and size from the given endpoint.
+     *
+     * One failing size or endpoint doesn't hold off the others.
+     */
+    protected CircuitBreaker getCircuitBreaker(BrokerEndpoint endpoint, SlaveTemplate st, HardwareSpec box) {
+        String id = getCircuitBreakerPrefix(endpoint, st.getMansionType())+box.size;
+        CircuitBreaker cb = circuitBreakers.get(id);
+        if (cb==null) {
+            circuitBreakers.putIfAbsent(id, new CircuitBreaker(id, 2, MAX_BACKOFF_SECONDS, TimeUnit.SECONDS));
+            cb = circuitBreakers.get(id);
+        }
+        return cb;
     }
 
-    private BackOffCounter getBackOffCounter(String id) {
-        BackOffCounter bc = backoffCounters.get(id);
-        if (bc==null) {
-            backoffCounters.putIfAbsent(id, new BackOffCounter(id, 2, MAX_BACKOFF_SECONDS, TimeUnit.SECONDS));
-            bc = backoffCounters.get(id);
+    /**
+     * Called when {@link BrokerProbe} sees the endpoint come back after failing,
+     * to resume provisioning from it without waiting out the back off.
+     */
+    /*package*/ void onBrokerRecovered(BrokerEndpoint endpoint, String mansionType) {
+        String prefix = getCircuitBreakerPrefix(endpoint, mansionType);
+        for (CircuitBreaker cb : circuitBreakers.values()) {
+            // the rest is just the size, not the path of another endpoint that happens to start like this one
+            if (cb.id.startsWith(prefix) && cb.id.indexOf('/', prefix.length())<0)
+                cb.reset();
         }
-        return bc;
+    }
+
+    private static String getCircuitBreakerPrefix(BrokerEndpoint endpoint, String mansionType) {
+        return endpoint.getNormalizedUrl()+mansionType+"/";
     }
 
     /**
      * Clear the back off window now.
      */
     @RequirePOST
-    public HttpResponse doRetryNow(@QueryParameter String broker) {
+    public HttpResponse doRetryNow(@QueryParameter String id) {
         checkPermission(Jenkins.ADMINISTER);
-        getBackOffCounter(broker).clear();
+        CircuitBreaker cb = circuitBreakers.get(id);
+        if (cb!=null)
+            cb.reset();
         return HttpResponses.forwardToPreviousPage();
     }
 
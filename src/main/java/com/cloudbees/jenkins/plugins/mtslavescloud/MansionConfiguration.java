@@ -29,6 +29,7 @@ import hudson.ExtensionList;
 import jenkins.model.Jenkins;
 import org.apache.tools.ant.ExtensionPoint;
 
+import javax.annotation.CheckForNull;
 import java.util.Locale;
 
 /**
@@ -46,9 +47,10 @@ public abstract class MansionConfiguration extends ExtensionPoint {
      * support for those as well.
      */
     public enum Size {
-        XLARGE("hi-speed"), HISPEED(XLARGE), LARGE("standard"), STANDARD(LARGE), SMALL("small");
+        XLARGE("hi-speed", 4), HISPEED(XLARGE), LARGE("standard", 2), STANDARD(LARGE), SMALL("small", 1);
         private String label;
         private Size canonical;
+        private int capacity;
 
         /**
          * Some sizes are synonyms for canonical sizes.
@@ -61,10 +63,13 @@ public abstract class MansionConfiguration extends ExtensionPoint {
         /**
          * Only canonical sizes have labels.
          * @param label
+         * @param capacity
+         *      How many small boxes this size is worth.
          */
-        Size(String label) {
+        Size(String label, int capacity) {
             this.canonical = this;
             this.label = label;
+            this.capacity = capacity;
         }
 
         /**
@@ -83,6 +88,24 @@ public abstract class MansionConfiguration extends ExtensionPoint {
         public String getHardwareSize() {
             return this.canonical.name().toLowerCase(Locale.ENGLISH);
         }
+
+        /**
+         * How many small boxes this size is worth.
+         */
+        public int getCapacity() {
+            return this.canonical.capacity;
+        }
+
+        /**
+         * Finds the canonical size by its {@linkplain #getHardwareSize() hardware size} or its {@linkplain #getLabel() label}.
+         */
+        public static @CheckForNull Size of(String name) {
+            for (Size s : values()) {
+                if (s.getHardwareSize().equals(name) || s.getLabel().equals(name))
+                    return s.canonical;
+            }
+            return null;
+        }
     }
 
     /**
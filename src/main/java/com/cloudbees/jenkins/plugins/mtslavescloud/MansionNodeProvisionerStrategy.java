@@ -110,15 +110,19 @@ public class MansionNodeProvisionerStrategy extends NodeProvisioner.Strategy {
         if (mansionCloud == null) {
             return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
         }
-        if (mansionCloud.getBackOffCounter(st).isBackOffInEffect()) {
+        final HardwareSpec box = mansionCloud.selectBox(st, mansionCloud.getBoxOf(st, label));
+        if (mansionCloud.isBackOffInEffect(st, box)) {
             LOGGER.log(Level.FINE, "Back off in effect for {0}", st);
             return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
         }
-        final HardwareSpec box = mansionCloud.getBoxOf(st, label);
         if (mansionCloud.getQuotaProblems().isBlocked(box, st)) {
             LOGGER.log(Level.FINE, "Provisioning of {0} blocked by quota problems.", st);
             return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
         }
+        if (mansionCloud.getCapacityLedger().getHeadroom(st.getMansionType(), box.size)<=0) {
+            LOGGER.log(Level.FINE, "Provisioning of {0} deferred as we are at the VM limit.", st);
+            return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+        }
         LoadStatistics.LoadStatisticsSnapshot snapshot = strategyState.getSnapshot();
         int availableCapacity = snapshot.getAvailableExecutors() + snapshot.getConnectingExecutors() +
                 strategyState.getAdditionalPlannedCapacity();
@@ -129,7 +133,9 @@ public class MansionNodeProvisionerStrategy extends NodeProvisioner.Strategy {
             Collection<NodeProvisioner.PlannedNode> plannedNodes = mansionCloud.provision(label, currentDemand - availableCapacity);
             LOGGER.log(Level.FINE, "Planned {0} new nodes", plannedNodes.size());
             strategyState.recordPendingLaunches(plannedNodes);
-            availableCapacity += plannedNodes.size();
+            for (NodeProvisioner.PlannedNode n : plannedNodes) {
+                availableCapacity += n.numExecutors;
+            }
             LOGGER.log(Level.FINE, "After provisioning, available capacity={0}, currentDemand={1}",
                     new Object[]{availableCapacity, currentDemand});
         }
@@ -47,6 +47,11 @@ public class MansionRetentionStrategy <T extends MansionComputer> extends CloudS
 
     private transient volatile boolean disconnectInProgress;
     
+    /**
+     * How many times we try to connect to a slave before we give up on it.
+     */
+    private static final int MAX_CONNECTION_ATTEMPTS = 10;
+
     private static final boolean NEED_SLEEP_BEFORE_KILL = 
             Jenkins.getVersion() == null || Jenkins.getVersion().isOlderThan(new VersionNumber("1.607"));
 
@@ -56,21 +61,26 @@ public class MansionRetentionStrategy <T extends MansionComputer> extends CloudS
         if (c.isOffline() && !c.isInitialConnectionEstablished() && !c.isConnecting()) {
             int attempts = c.getConnectionAttempts();
             MansionSlave node = c.getNode();
-            LOGGER.log(Level.INFO, "Failed to connect to slave over ssh (try #{0})\nLauncher log:\n{1}",
-                    new Object[]{attempts, node == null ? "(unavailable)" : MansionSlave.getSlaveLog(node)});
-            if (attempts < 10) {
+            if (attempts < MAX_CONNECTION_ATTEMPTS) {
+                // the launcher log gets long, and most of it repeats itself, so only dump it in full at the end
+                LOGGER.log(Level.INFO, "Failed to connect to slave {0} over ssh (try #{1})", new Object[]{c.getName(), attempts});
+                if (LOGGER.isLoggable(FINE))
+                    LOGGER.log(FINE, "Launcher log of {0}:\n{1}",
+                            new Object[]{c.getName(), node == null ? "(unavailable)" : MansionSlave.getSlaveLog(node)});
                 c.connect(false);
                 return 1;
-            } else if (attempts >= 10) {
-                try {
-                    if (node!=null) {
-                        node.onConnectFailure(String.format("Failed to connect to slave over ssh (try #%d)", attempts));
-                        // rare, but n==null if the node is deleted and being checked roughly at the same time
-                        kill(node);
-                    }
-                } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, "Failed to take slave offline: {0}", c.getName());
+            }
+
+            LOGGER.log(Level.INFO, "Failed to connect to slave over ssh (try #{0})\nLauncher log:\n{1}",
+                    new Object[]{attempts, node == null ? "(unavailable)" : MansionSlave.getSlaveLog(node)});
+            try {
+                if (node!=null) {
+                    node.onConnectFailure(String.format("Failed to connect to slave over ssh (try #%d)", attempts));
+                    // rare, but n==null if the node is deleted and being checked roughly at the same time
+                    kill(node);
                 }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to take slave offline: {0}", c.getName());
             }
         }
         
@@ -29,21 +29,26 @@ import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
 import com.cloudbees.mtslaves.client.VirtualMachineRef;
 import hudson.Extension;
 import hudson.Util;
+import hudson.model.AbstractBuild;
 import hudson.model.AsyncPeriodicWork;
 import hudson.model.Computer;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Result;
 import hudson.model.Slave;
 import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 import hudson.slaves.AbstractCloudSlave;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.EphemeralNode;
 import hudson.slaves.NodeProperty;
 import hudson.util.TimeUnit2;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import org.apache.commons.io.IOUtils;
 
+import javax.annotation.CheckForNull;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -67,17 +72,58 @@ public class MansionSlave extends AbstractCloudSlave implements EphemeralNode {
     private final SlaveTemplate template;
     private Long createdDate = System.currentTimeMillis();
 
+    /**
+     * {@link SlaveTemplate#getSpecFingerprint()} at the time this slave was created.
+     */
+    private final String specFingerprint;
+
     /**
      * Keeps track of the last renewal.
      */
     private transient long renewalTimestamp;
 
-    public MansionSlave(VirtualMachineRef vm, SlaveTemplate template, Label label, ComputerLauncher launcher) throws FormException, IOException {
+    /**
+     * Number of builds that have started on this slave so far.
+     */
+    private transient int buildCount;
+
+    /**
+     * {@link #buildCount} as of the last snapshots taken by {@link #snapshotWhileIdle()}, or -1 if there's none.
+     */
+    private transient int snapshottedBuildCount = -1;
+
+    /**
+     * True while {@link #snapshotWhileIdle()} is taking snapshots. Guarded by {@code this}.
+     */
+    private transient boolean snapshotting;
+
+    /**
+     * Full name of the job that started last on this slave.
+     */
+    private transient String lastJob;
+
+    /**
+     * Job whose workspace snapshot this slave was set up with. Other builds keep off this slave
+     * for a while after it connects, so that this job gets to use it.
+     */
+    private transient volatile String reservedFor;
+
+    /**
+     * Counts the VM of this slave in {@link CapacityLedger}.
+     */
+    private transient volatile CapacityLedger.Lease lease;
+
+    /**
+     * If this slave is of a different size than what was asked for, the requested size and the actual size.
+     */
+    private transient volatile String requestedSize, actualSize;
+
+    public MansionSlave(VirtualMachineRef vm, SlaveTemplate template, Label label, ComputerLauncher launcher, int numExecutors) throws FormException, IOException {
         super(
                 massageId(vm),
                 "Virtual machine provisioned from "+vm.url,
                 template.getMansionType().equals("win") ? "c:\\scratch\\jenkins" : "/scratch/jenkins",
-                1,
+                numExecutors,
                 Mode.NORMAL,
                 label == null ? "" : label.getDisplayName(),
                 launcher,
@@ -85,6 +131,7 @@ public class MansionSlave extends AbstractCloudSlave implements EphemeralNode {
                 Collections.<NodeProperty<?>>emptyList());
         this.vm = vm;
         this.template = template;
+        this.specFingerprint = template.getSpecFingerprint();
     }
 
     public SlaveTemplate getTemplate() {
@@ -168,41 +215,190 @@ public class MansionSlave extends AbstractCloudSlave implements EphemeralNode {
 
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
-        OUTER:
-        for (MansionCloud cloud: Jenkins.getInstance().clouds.getAll(MansionCloud.class)) {
-            for (PlannedMansionSlave p: cloud.getInProgressSet()) {
-                if (p.getNode() == this) {
-                    p.onTerminate();
-                    break OUTER;
+        CapacityLedger.Lease l = lease;
+        if (l!=null)
+            l.moveTo(CapacityLedger.Phase.DISPOSING);
+        try {
+            OUTER:
+            for (MansionCloud cloud: Jenkins.getInstance().clouds.getAll(MansionCloud.class)) {
+                for (PlannedMansionSlave p: cloud.getInProgressSet()) {
+                    if (p.getNode() == this) {
+                        p.onTerminate();
+                        break OUTER;
+                    }
                 }
             }
-        }
-        try {
-            FileSystemClan clan = template.getClan();
-            clan.update(vm.getState(), createdDate);
-        } catch (IOException e) {
-            e.printStackTrace(listener.error("Failed to update the file system clan"));
-            LOGGER.log(Level.INFO, "Failed to update the file system clan", e);
-        }
-        BillingMemoBuilder.BuildHistory history = getNodeProperties().get(BillingMemoBuilder.BuildHistory.class);
-        if (history != null) {
+            BillingMemoBuilder.BuildHistory history = getNodeProperties().get(BillingMemoBuilder.BuildHistory.class);
+            awaitIdleSnapshots();
+            try {
+                if (hasUpToDateSnapshots()) {
+                    listener.getLogger().println("Snapshots taken while " + vm.url + " was idle are still up to date");
+                } else if (isTemplateChanged()) {
+                    listener.getLogger().println("Not taking snapshots of " + vm.url + " as " + template.getName() + " has changed since it started");
+                } else if (template.getSnapshotPolicy().shouldSnapshot(template, history)) {
+                    FileSystemClan clan = template.getClan();
+                    clan.update(vm.getState(), createdDate, getWorkspaceJob(), getBuildCount());
+                } else {
+                    listener.getLogger().println("Not taking snapshots of " + vm.url + " per the snapshot policy");
+                    // cache volumes have a life cycle of their own
+                    template.getClan().updateCaches(vm.getState(), createdDate);
+                }
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to update the file system clan"));
+                LOGGER.log(Level.INFO, "Failed to update the file system clan", e);
+            }
+            if (history != null) {
+                try {
+                    vm.setMemo(history.toJSONObject());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to set memo "+vm.url, e);
+                }
+            }
+
             try {
-                vm.setMemo(history.toJSONObject());
+                vm.dispose();
+                listener.getLogger().println("Disposed " + vm.url+" last renewal was "+new Date(renewalTimestamp));
+                LOGGER.log(Level.INFO, "Disposed " + vm.url+" last renewal was "+new Date(renewalTimestamp));
             } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Failed to set memo "+vm.url, e);
+                e.printStackTrace(listener.error("Failed to dispose "+vm.url));
+                LOGGER.log(Level.INFO, "Failed to dispose "+vm.url, e);
             }
+        } finally {
+            if (l!=null)
+                l.release();
         }
+    }
 
+    private synchronized void onBuildStarted(AbstractBuild r) {
+        buildCount++;
+        lastJob = WorkspaceRouting.jobOf(r.getProject());
+        reservedFor = null;
+    }
+
+    /**
+     * The job the workspace of this slave should be recorded for, or null to record it for all the jobs.
+     */
+    private synchronized String getWorkspaceJob() {
+        return template.isPerJobWorkspaces() ? lastJob : null;
+    }
+
+    /*package*/ void adopt(CapacityLedger.Lease lease) {
+        lease.moveTo(CapacityLedger.Phase.ONLINE);
+        this.lease = lease;
+    }
+
+    /**
+     * Gives the VM back without taking snapshots, for a slave that never made it online.
+     */
+    /*package*/ void discard() {
+        CapacityLedger.Lease l = lease;
         try {
-            vm.dispose();
-            listener.getLogger().println("Disposed " + vm.url+" last renewal was "+new Date(renewalTimestamp));
-            LOGGER.log(Level.INFO, "Disposed " + vm.url+" last renewal was "+new Date(renewalTimestamp));
+            MansionCloud.disposeQuietly(vm);
+        } finally {
+            if (l!=null)
+                l.release();
+        }
+    }
+
+    /*package*/ void onSizeFallback(String requested, String actual) {
+        this.requestedSize = requested;
+        this.actualSize = actual;
+    }
+
+    public @CheckForNull String getRequestedSize() {
+        return requestedSize;
+    }
+
+    public @CheckForNull String getActualSize() {
+        return actualSize;
+    }
+
+    /*package*/ void reserveFor(@CheckForNull String job) {
+        reservedFor = job;
+    }
+
+    /**
+     * Gets the job this slave is held for, if the reservation hasn't lapsed.
+     */
+    /*package*/ @CheckForNull String getReservation() {
+        String job = reservedFor;
+        if (job==null)
+            return null;
+        Computer c = toComputer();
+        if (c!=null && c.isOnline()
+                && System.currentTimeMillis()-c.getConnectTime() > TimeUnit.SECONDS.toMillis(WorkspaceRouting.RESERVATION_SECONDS)) {
+            reservedFor = null;
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * Has the template been pointed to a different base image since this slave started?
+     * If so, the file systems of this slave no longer make a good starting point for the next one.
+     */
+    private boolean isTemplateChanged() {
+        return specFingerprint!=null && !specFingerprint.equals(template.getSpecFingerprint());
+    }
+
+    private synchronized int getBuildCount() {
+        return buildCount;
+    }
+
+    private synchronized boolean hasUpToDateSnapshots() {
+        return snapshottedBuildCount == buildCount;
+    }
+
+    /**
+     * Takes snapshots of the file systems of this slave while it sits idle, so that the termination
+     * doesn't have to, and so that slaves that start in the mean time already get the new snapshots.
+     *
+     * <p>
+     * If no other build runs on this slave until it terminates, the file systems are unchanged and
+     * the termination reuses these snapshots.
+     */
+    /*package*/ void snapshotWhileIdle() {
+        int count;
+        String job;
+        synchronized (this) {
+            if (snapshotting || hasUpToDateSnapshots() || isTemplateChanged())
+                return;
+            // talking to the mansion takes a while, so don't hold up the builds that start in the mean time
+            snapshotting = true;
+            count = buildCount;
+            job = getWorkspaceJob();
+        }
+        try {
+            BillingMemoBuilder.BuildHistory history = getNodeProperties().get(BillingMemoBuilder.BuildHistory.class);
+            FileSystemClan clan = template.getClan();
+            if (template.getSnapshotPolicy().shouldSnapshot(template, history)) {
+                clan.update(vm.getState(), createdDate, job, count);
+                LOGGER.log(Level.FINE, "Took snapshots of idle {0}", vm.url);
+            } else {
+                clan.updateCaches(vm.getState(), createdDate);
+                LOGGER.log(Level.FINE, "Took snapshots of the caches of idle {0} per the snapshot policy", vm.url);
+            }
+            synchronized (this) {
+                snapshottedBuildCount = count;
+            }
         } catch (IOException e) {
-            e.printStackTrace(listener.error("Failed to dispose "+vm.url));
-            LOGGER.log(Level.INFO, "Failed to dispose "+vm.url, e);
+            LOGGER.log(Level.WARNING, "Failed to take snapshots of idle "+vm.url, e);
+        } finally {
+            synchronized (this) {
+                snapshotting = false;
+                notifyAll();
+            }
         }
     }
 
+    /**
+     * Waits for {@link #snapshotWhileIdle()} to finish, so that we don't snapshot the same file systems twice.
+     */
+    private synchronized void awaitIdleSnapshots() throws InterruptedException {
+        while (snapshotting)
+            wait();
+    }
+
     public void onConnectFailure(String message) {
         for (MansionCloud cloud : Jenkins.getInstance().clouds.getAll(MansionCloud.class)) {
             for (PlannedMansionSlave p : cloud.getInProgressSet()) {
@@ -214,6 +410,69 @@ public class MansionSlave extends AbstractCloudSlave implements EphemeralNode {
         }
     }
 
+    /**
+     * Triggers {@link #snapshotWhileIdle()} when a successful build leaves a slave idle.
+     */
+    @Extension
+    public static class IdleSnapshotter extends RunListener<AbstractBuild> {
+        @Override
+        public void onStarted(AbstractBuild r, TaskListener listener) {
+            Node n = r.getBuiltOn();
+            if (n instanceof MansionSlave)
+                ((MansionSlave) n).onBuildStarted(r);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild r, TaskListener listener) {
+            Node n = r.getBuiltOn();
+            if (!(n instanceof MansionSlave))
+                return;
+            MansionSlave s = (MansionSlave) n;
+            Result result = r.getResult();
+            if (!s.template.isSnapshotWhenIdle() || result==null || !result.isBetterOrEqualTo(Result.SUCCESS))
+                return;
+
+            // the executor is still busy finishing up this build, so look again in a moment
+            new IdleCheck(s, IDLE_CHECKS).schedule();
+        }
+
+        private static final int IDLE_CHECKS = 10;
+    }
+
+    /**
+     * Checks once whether a slave has gone idle after a build, and schedules another check if it hasn't,
+     * so that no thread sits around waiting for it.
+     */
+    private static final class IdleCheck implements Runnable {
+        private final MansionSlave s;
+        private final int remaining;
+
+        IdleCheck(MansionSlave s, int remaining) {
+            this.s = s;
+            this.remaining = remaining;
+        }
+
+        void schedule() {
+            Timer.get().schedule(this, 1, TimeUnit.SECONDS);
+        }
+
+        public void run() {
+            MansionComputer c = s.asComputer();
+            if (c==null || c.isDisconnectInProgress())
+                return;     // on its way out already
+            if (c.isIdle()) {
+                // talking to the mansion takes a while, so keep it off the timer thread
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    public void run() {
+                        s.snapshotWhileIdle();
+                    }
+                });
+            } else if (remaining>1) {
+                new IdleCheck(s, remaining-1).schedule();
+            }   // otherwise another build got this slave
+        }
+    }
+
     @Extension
     public static class MansionLeaseRenewal extends AsyncPeriodicWork {
 
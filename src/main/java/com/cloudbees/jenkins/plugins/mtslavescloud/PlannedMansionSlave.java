@@ -25,11 +25,21 @@
 package com.cloudbees.jenkins.plugins.mtslavescloud;
 
 import com.cloudbees.jenkins.plugins.mtslavescloud.templates.FileSystemClan;
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.FileSystemLineage;
 import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate.HedgePhase;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.CircuitBreaker;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.Hedge;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.LatencyWindow;
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.PortProbe;
 import com.cloudbees.jenkins.plugins.mtslavescloud.util.PromisedFuture;
 import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
 import com.cloudbees.jenkins.plugins.sshcredentials.impl.BasicSSHUserPrivateKey;
 import com.cloudbees.jenkins.plugins.sshcredentials.impl.BasicSSHUserPrivateKey.DirectEntryPrivateKeySource;
+import com.cloudbees.mtslaves.client.HardwareSpec;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import com.cloudbees.mtslaves.client.VirtualMachineConfigurationException;
 import com.cloudbees.mtslaves.client.VirtualMachineRef;
 import com.cloudbees.mtslaves.client.VirtualMachineSpec;
@@ -41,6 +51,7 @@ import hudson.Main;
 import hudson.model.Computer;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.PeriodicWork;
 import hudson.model.TaskListener;
 import hudson.plugins.sshslaves.SSHLauncher;
 import hudson.slaves.ComputerListener;
@@ -59,6 +70,8 @@ import org.kohsuke.stapler.interceptor.RequirePOST;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -94,6 +107,21 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
      */
     private final Label label;
 
+    /**
+     * Size of the box we are provisioning, and the size that was asked for.
+     */
+    private final HardwareSpec box, requested;
+
+    /**
+     * Counts this VM in {@link CapacityLedger} until the slave takes it over.
+     */
+    private volatile CapacityLedger.Lease lease;
+
+    /**
+     * Circuit breaker of the broker endpoint this slave is requested from.
+     */
+    private final CircuitBreaker breaker;
+
     /**
      * Set to the timestamp when this {@link PlannedNode} is marked as spent
      *
@@ -113,6 +141,50 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
 
     private volatile boolean dismissed;
 
+    /**
+     * Job whose workspace this slave is set up with, if any.
+     */
+    private volatile String job;
+
+    /**
+     * What we are waiting for, and since when. Null once the slave is handed over.
+     */
+    private volatile Phase phase = Phase.ALLOCATING;
+    private volatile long phaseStartedAt = System.currentTimeMillis();
+
+    /**
+     * Set when we gave up on this slave because a phase took too long.
+     */
+    private boolean aborted;
+
+    /**
+     * When the VM finished booting. 0 until then.
+     */
+    private volatile long bootedAt;
+
+    /**
+     * Sets up the slave, once we have the VM.
+     */
+    private volatile Future<Node> task;
+
+    /**
+     * Phases of the provisioning, each of which has to finish within its own deadline.
+     */
+    public enum Phase {
+        ALLOCATING, CONFIGURING, BOOTING;
+
+        /**
+         * How long this phase may take, in ms. 0 or less for no limit.
+         */
+        public long getTimeout() {
+            switch (this) {
+            case ALLOCATING:    return ALLOCATION_TIMEOUT;
+            case CONFIGURING:   return CONFIGURATION_TIMEOUT;
+            default:            return BOOT_TIMEOUT;
+            }
+        }
+    }
+
     /**
      * When did we start provisioning this guy?
      */
@@ -123,15 +195,36 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
      */
     public volatile MansionSlave node;
 
-    public PlannedMansionSlave(Label label, SlaveTemplate template) {
-        super(template.getDisplayName(), new PromisedFuture<Node>(), 1);
+    /**
+     * @param box
+     *      Size of the box to provision.
+     * @param requested
+     *      Size of the box that was asked for, which differs from {@code box} if we are falling back to another size.
+     * @param breaker
+     *      Circuit breaker to report the outcome to.
+     */
+    public PlannedMansionSlave(Label label, SlaveTemplate template, HardwareSpec box, HardwareSpec requested, CircuitBreaker breaker) {
+        super(template.getDisplayName(), new PromisedFuture<Node>(), template.getNumExecutors(box.size));
         this.st = template;
         this.cloud = template.getMansion();
         this.label = label;
+        this.box = box;
+        this.requested = requested;
+        this.breaker = breaker;
+        this.lease = cloud.getCapacityLedger().lease(template.getMansionType(), box.size);
 
         cloud.getInProgressSet().onStarted(this);
 
         status = "Requesting";
+
+        Futures.addCallback(promise(), new FutureCallback<Node>() {
+            public void onSuccess(Node result) {
+            }
+
+            public void onFailure(Throwable t) {
+                PlannedMansionSlave.this.onFailure(t);
+            }
+        });
     }
 
     public String getDisplayName() {
@@ -173,10 +266,19 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
 
     public void onVirtualMachineProvisioned(@Nonnull VirtualMachineRef vm) {
         vm.getClass(); // throw NPE if null
+        synchronized (this) {
+            if (aborted) {  // too late
+                MansionCloud.disposeQuietly(vm);
+                return;
+            }
+        }
         if (this.vm == null) {
             this.vm = vm;
             // start allocation
-            promise().setBase(Computer.threadPoolForRemoting.submit(this));
+            ListenableFutureTask<Node> t = ListenableFutureTask.create(this);
+            task = t;
+            promise().setBase(t);
+            Computer.threadPoolForRemoting.execute(t);
         } else {
             throw new IllegalStateException("VirtualMachineRef already allocated");
         }
@@ -184,39 +286,51 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
     }
     
     public void onProvisioningFailure(final Throwable e) {
-        promise().setBase(new Future<Node>() {
-            @Override
-            public boolean cancel(boolean mayInterruptIfRunning) {
-                return false;
-            }
+        synchronized (this) {
+            if (aborted)
+                return;     // we've already failed the promise
+        }
+        fail(e);
+    }
 
-            @Override
-            public boolean isCancelled() {
-                return false;
-            }
+    private void fail(Throwable e) {
+        promise().setException(e);
+    }
 
-            @Override
-            public boolean isDone() {
-                return true;
-            }
+    /**
+     * Called as soon as the promise fails, whether or not {@link hudson.slaves.NodeProvisioner} has noticed yet.
+     */
+    private void onFailure(Throwable t) {
+        problem = t;
+        status = "Failed";
+        breaker.recordError();
 
-            @Override
-            public Node get() throws InterruptedException, ExecutionException {
-                throw new ExecutionException(e);
-            }
+        CapacityLedger.Lease l = lease;
+        if (l!=null)    // we never got to the slave
+            l.release();
 
-            @Override
-            public Node get(long timeout, TimeUnit unit)
-                    throws InterruptedException, ExecutionException, TimeoutException {
-                throw new ExecutionException(e);
-            }
-        });
+        cloud.getInProgressSet().update();
     }
 
     public String getStatus() {
         return status;
     }
 
+    public SlaveTemplate getTemplate() {
+        return st;
+    }
+
+    /*package*/ Label getLabel() {
+        return label;
+    }
+
+    /**
+     * Full name of the job whose workspace this slave is set up with, if any.
+     */
+    public String getJob() {
+        return job;
+    }
+
     /**
      * Gets the type of the mansion
      */
@@ -242,6 +356,7 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
             LOGGER.log(Level.FINE, "Allocated {0}", vm.url);
 
             status = "Configuring";
+            enter(Phase.CONFIGURING);
 
             t.setName(oldName + " : configuring " + vm.url);
 
@@ -262,21 +377,12 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
                     new DirectEntryPrivateKeySource(encodePrivateKey(id)),null,null);
 
             spec.sshd(JENKINS_USER, 15000, publicKey.trim()); // TODO: should UID be configurable?
-            try {
-                VirtualMachineSpec specWithSnapshots = spec.clone();
-                FileSystemClan fileSystemClan = st.getClan();
-                fileSystemClan.applyTo(specWithSnapshots, vm);    // if we have more up-to-date snapshots, use them
-                vm.setup(specWithSnapshots);
-            } catch (VirtualMachineConfigurationException e) {
-                LOGGER.log(WARNING, "Couldn't find snapshot, trying with originals",e);
-                //TODO: we should try to figure out which snapshot to revert
-                //TODO: instead of reverting them all
-                try {
-                    vm.setup(spec);
-                } catch (VirtualMachineConfigurationException e2) {
-                    throw new IOException2("Failed to configure VM", e2);
-                }
+            if (st.isPerJobWorkspaces()) {
+                job = WorkspaceRouting.pick(this, st.getClan().getWarmJobs(vm));
+                if (job!=null)
+                    LOGGER.log(FINE, "Setting up {0} with the workspace of {1}", new Object[]{vm.url, job});
             }
+            setup(vm, spec);
 
             if (INJECT_FAULT)
                 throw new IllegalStateException("Injected failure");
@@ -284,21 +390,290 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
             t.setName(oldName + " : booting " + vm.url);
 
             status = "Booting";
-            vm.bootSync();
+            enter(Phase.BOOTING);
+            VirtualMachineRef primaryVm = vm;
+            vm = boot(spec);
+            bootedAt = System.currentTimeMillis();
             LOGGER.fine("Booted " + vm.url);
 
             status = "Provisioned";
             SshdEndpointProperty sshd = vm.getState().getProperty(SshdEndpointProperty.class);
-            SSHLauncher launcher = new SSHLauncher(sshd.getHost(), sshd.getPort(), sshCred,
-                    // Linux slaves can run without it, but OS X slaves need java.awt.headless=true
-                    "-Djava.awt.headless=true", null, null, null, null, 180, 10, 1);
-            return node = new MansionSlave(vm,st,label,launcher);
+
+            // SSHLauncher would keep retrying, so wait until sshd is there before we hand over
+            status = "Waiting for sshd";
+            long waitStart = System.currentTimeMillis();
+            boolean sshdReady = PortProbe.await(sshd.getHost(), sshd.getPort(), SSHD_TIMEOUT);
+            if (sshdReady)
+                LOGGER.log(FINE, "sshd of {0} came up in {1}ms", new Object[]{vm.url, System.currentTimeMillis()-waitStart});
+            else
+                LOGGER.log(WARNING, "sshd of {0} isn't accepting connections after {1}ms, leaving it to the launcher to retry",
+                        new Object[]{vm.url, SSHD_TIMEOUT});
+
+            // Linux slaves can run without it, but OS X slaves need java.awt.headless=true
+            String jvmOptions = "-Djava.awt.headless=true";
+            int retries = sshdReady ? 2 : 10;
+            List<String> persistent = st.getPersistentFileSystems();
+            SSHLauncher launcher;
+            if (CachingSSHLauncher.ENABLED && !persistent.isEmpty() && !st.getMansionType().equals("win")) {
+                // the jar then makes it into the snapshot, and the next slave won't need it copied
+                launcher = new CachingSSHLauncher(sshd.getHost(), sshd.getPort(), sshCred, jvmOptions, 180, retries, 1,
+                        CachingSSHLauncher.cacheDirOn(persistent.get(0)));
+            } else {
+                launcher = new SSHLauncher(sshd.getHost(), sshd.getPort(), sshCred,
+                        jvmOptions, null, null, null, null, 180, retries, 1);
+            }
+            MansionSlave node = new MansionSlave(vm,st,label,launcher,numExecutors);
+            synchronized (this) {
+                if (aborted) {
+                    if (vm!=primaryVm)  // a hedge won after we disposed the original VM
+                        MansionCloud.disposeQuietly(vm);
+                    throw new IllegalStateException("Provisioning of "+vm.url+" was aborted");
+                }
+                this.node = node;
+                phase = null;
+            }
+            node.reserveFor(job);
+            if (!box.size.equals(requested.size))
+                node.onSizeFallback(requested.size, box.size);
+            node.adopt(lease);
+            lease = null;
+            if (st.isLaunchWhileProvisioning())
+                launch(node);
+            return node;
         } finally {
             t.setName(oldName);
             t.setContextClassLoader(oldCL);
         }
     }
 
+    private void enter(Phase p) {
+        phase = p;
+        phaseStartedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * What we are waiting for, or null if we are not provisioning any more.
+     */
+    public Phase getPhase() {
+        return spent==0 ? phase : null;
+    }
+
+    /**
+     * Gives up on this slave if the current phase has gone past its deadline.
+     *
+     * The VM is disposed, which also gets the thread stuck talking to it unstuck, and the promise fails right away,
+     * so that the slot is freed and {@link hudson.slaves.NodeProvisioner} asks for a replacement.
+     */
+    /*package*/ void checkDeadline() {
+        Phase p = getPhase();
+        if (p==null)    return;
+        long timeout = p.getTimeout();
+        long elapsed = System.currentTimeMillis()-phaseStartedAt;
+        if (timeout<=0 || elapsed<timeout)
+            return;
+
+        synchronized (this) {
+            if (aborted || phase!=p)
+                return;
+            aborted = true;
+        }
+
+        VirtualMachineRef vm = this.vm;
+        TimeoutException e = new TimeoutException(String.format("Gave up on %s after %ds in the %s phase",
+                vm==null ? "allocating a VM" : vm.url, TimeUnit.MILLISECONDS.toSeconds(elapsed), p));
+        LOGGER.log(WARNING, e.getMessage());
+        fail(e);    // before we cancel the task, so that this is the reason the promise reports
+        status = "Timed out";
+        if (vm!=null)
+            MansionCloud.disposeQuietly(vm);
+        Future<Node> task = this.task;
+        if (task!=null)
+            task.cancel(true);
+
+        for (Label l : Jenkins.getInstance().getLabels()) {
+            if (st.matches(l))
+                l.nodeProvisioner.suggestReviewNow();
+        }
+    }
+
+    /**
+     * Adds the slave to Jenkins ourselves, which gets {@link MansionRetentionStrategy} to connect it right away,
+     * and waits for that first connection, so that {@link hudson.slaves.NodeProvisioner} gets a slave that's
+     * already online. Jenkins ignores the same node being added again.
+     *
+     * If the connection is merely slow, the slave is handed over and the retention strategy takes it from there.
+     * If it fails, the slave is removed and its VM disposed, and we fail, so that the promise doesn't hand over
+     * a slave that's being torn down.
+     */
+    private void launch(MansionSlave node) throws Exception {
+        status = "Connecting";
+        Jenkins.getInstance().addNode(node);
+        Computer c = node.toComputer();
+        if (c==null)
+            return;
+        Throwable problem = null;
+        try {
+            c.connect(false).get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (c.isOffline())
+                problem = new IOException("Failed to connect to "+node.getNodeName());
+        } catch (ExecutionException e) {
+            problem = e.getCause()!=null ? e.getCause() : e;
+        } catch (TimeoutException e) {
+            LOGGER.log(FINE, "Still connecting to {0}, leaving it to the retention strategy", node.getNodeName());
+        } catch (InterruptedException e) {
+            problem = e;
+        }
+        if (problem==null)
+            return;
+
+        LOGGER.log(WARNING, "Failed to connect to "+node.getNodeName()+" early, giving up on it", problem);
+        this.node = null;
+        try {
+            Jenkins.getInstance().removeNode(node);
+        } finally {
+            node.discard();
+        }
+        if (problem instanceof InterruptedException)
+            throw (InterruptedException)problem;
+        throw new IOException2("Failed to connect to "+node.getNodeName(), problem);
+    }
+
+    /**
+     * Sets up the VM, starting from the more up-to-date snapshots in the clan where we have them.
+     *
+     * If the mansion refuses a snapshot, we figure out which one it is and drop just that one from the clan,
+     * so that one bad snapshot doesn't make us throw away all the other warm caches.
+     */
+    private void setup(VirtualMachineRef vm, VirtualMachineSpec spec) throws IOException {
+        FileSystemClan clan = st.getClan();
+        List<FileSystemLineage> candidates = clan.getApplicableLineages(vm, job);
+        while (true) {
+            try {
+                vm.setup(withSnapshots(vm, spec, candidates));
+                return;
+            } catch (VirtualMachineConfigurationException e) {
+                if (candidates.isEmpty())
+                    throw new IOException2("Failed to configure VM", e);
+                LOGGER.log(WARNING, "Failed to configure "+vm.url+" with snapshots "+candidates, e);
+
+                FileSystemLineage culprit = null;
+                for (FileSystemLineage l : candidates) {
+                    if (l.isBlamedBy(e))
+                        culprit = l;
+                }
+                if (culprit!=null) {
+                    candidates.remove(culprit);
+                    clan.quarantine(culprit);
+                    continue;
+                }
+
+                // mansion didn't tell us which one it didn't like, so try leaving them out one at a time
+                for (FileSystemLineage l : candidates) {
+                    List<FileSystemLineage> rest = new ArrayList<FileSystemLineage>(candidates);
+                    rest.remove(l);
+                    try {
+                        vm.setup(withSnapshots(vm, spec, rest));
+                        clan.quarantine(l);
+                        return;
+                    } catch (VirtualMachineConfigurationException e2) {
+                        LOGGER.log(FINE, "Still failing to configure "+vm.url+" without "+l, e2);
+                    }
+                }
+
+                if (candidates.size()==1)   // we've already tried without any snapshot
+                    throw new IOException2("Failed to configure VM", e);
+
+                // more than one of them is bad, so revert them all
+                LOGGER.log(WARNING, "Couldn't pin down the bad snapshot, trying with originals");
+                candidates.clear();
+            }
+        }
+    }
+
+    private VirtualMachineSpec withSnapshots(VirtualMachineRef vm, VirtualMachineSpec spec, List<FileSystemLineage> lineages) {
+        VirtualMachineSpec r = spec.clone();
+        for (FileSystemLineage l : lineages) {
+            l.applyTo(r, vm);
+        }
+        return r;
+    }
+
+    /**
+     * Boots the VM, and if the template wants it and that's taking much longer than usual,
+     * sets up another one alongside and keeps whichever boots first.
+     *
+     * @return the VM that booted.
+     */
+    private VirtualMachineRef boot(final VirtualMachineSpec spec) throws Exception {
+        final Hedging hedging = cloud.getHedging();
+        long delay = hedging.getDelay(st, HedgePhase.BOOTED);
+        if (delay<0) {
+            vm.bootSync();
+            return vm;
+        }
+
+        final LatencyWindow latency = hedging.getLatency(st, HedgePhase.BOOTED);
+        final VirtualMachineRef primary = vm;
+        return new Hedge<VirtualMachineRef>() {
+            private volatile CapacityLedger.Lease lease;
+            private volatile VirtualMachineRef backup;
+            private volatile boolean backupDisposed;
+
+            @Override
+            protected VirtualMachineRef attempt(boolean isBackup) throws Exception {
+                if (!isBackup) {
+                    long start = System.currentTimeMillis();
+                    primary.bootSync();
+                    latency.record(System.currentTimeMillis()-start);
+                    return primary;
+                }
+
+                VirtualMachineRef v = backup = cloud.allocateBackup(st, box);
+                try {
+                    setup(v, spec);
+                    long start = System.currentTimeMillis();
+                    v.bootSync();
+                    latency.record(System.currentTimeMillis()-start);
+                    return v;
+                } catch (Exception e) {
+                    if (!backupDisposed)
+                        MansionCloud.disposeQuietly(v);
+                    throw e;
+                }
+            }
+
+            @Override
+            protected boolean shouldHedge() {
+                lease = hedging.tryHedge(cloud.getCapacityLedger(), st.getMansionType(), box.size);
+                if (lease==null)
+                    return false;
+                LOGGER.log(INFO, "{0} is slow to boot, booting another VM alongside", primary.url);
+                status = "Booting two VMs";
+                return true;
+            }
+
+            @Override
+            protected void abandon(boolean isBackup) {
+                if (!isBackup) {
+                    hedging.onBackupWon();
+                    MansionCloud.disposeQuietly(primary);
+                } else if (backup!=null) {
+                    backupDisposed = true;
+                    MansionCloud.disposeQuietly(backup);
+                }
+                // otherwise the backup is still being allocated, and will be disposed when it's done
+            }
+
+            @Override
+            protected void discard(VirtualMachineRef loser) {
+                if (loser!=null && loser!=primary && !backupDisposed)
+                    MansionCloud.disposeQuietly(loser);
+                if (lease!=null)
+                    lease.release();
+            }
+        }.run(Computer.threadPoolForRemoting, delay);
+    }
+
     // TODO: move this to instance-identity-module
     private String encodePrivateKey(InstanceIdentity id) {
         try {
@@ -329,23 +704,8 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
     public void spent() {
         spent = System.currentTimeMillis();
 
-        // how did the provisioning go?
-        try {
-            future.get(0,TimeUnit.SECONDS);
-        } catch (ExecutionException e) {
-            problem = e.getCause();
-            if (problem==null)  // this shouldn't happen but let's be defensive
-                problem = e;
-        } catch (InterruptedException e) {// this shouldn't happen but let's be defensive
-            problem = e;
-        } catch (TimeoutException e) {// this shouldn't happen but let's be defensive
-            problem = e;
-        }
-
-        if (problem!=null) {
-            status = "Failed";
-            cloud.getBackOffCounter(st).recordError();
-        } else {
+        // failures are taken care of by onFailure as they happen
+        if (problem==null) {
             MansionSlave node = this.node;
             if (node != null && node.getChannel() != null) {
                 status = "Completed";
@@ -394,6 +754,26 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
      */
     public static final String JENKINS_USER = "jenkins";
 
+    /**
+     * Gives up on slaves that have gone past the deadline of their phase.
+     */
+    @Extension
+    public static class DeadlineEnforcer extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(15);
+        }
+
+        @Override
+        protected void doRun() {
+            for (MansionCloud c : Jenkins.getInstance().clouds.getAll(MansionCloud.class)) {
+                for (PlannedMansionSlave s : c.getInProgressSet()) {
+                    s.checkDeadline();
+                }
+            }
+        }
+    }
+
     private static final Logger LOGGER = Logger.getLogger(PlannedMansionSlave.class.getName());
 
     /**
@@ -406,6 +786,33 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
      */
     public static boolean INJECT_FAULT = false;
 
+    /**
+     * How long to wait for the broker to give us a VM, in ms.
+     */
+    public static long ALLOCATION_TIMEOUT = Long.getLong(PlannedMansionSlave.class.getName()+".allocationTimeout", TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * How long to wait for a VM to be set up, in ms.
+     */
+    public static long CONFIGURATION_TIMEOUT = Long.getLong(PlannedMansionSlave.class.getName()+".configurationTimeout", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How long to wait for sshd of a booted VM to accept connections, in ms.
+     */
+    public static long SSHD_TIMEOUT = Long.getLong(PlannedMansionSlave.class.getName()+".sshdTimeout", TimeUnit.MINUTES.toMillis(2));
+
+    /**
+     * How long to wait for the first connection of a slave whose template
+     * {@linkplain SlaveTemplate#isLaunchWhileProvisioning() launches while provisioning}, in ms,
+     * before leaving it to the retention strategy.
+     */
+    public static long CONNECT_TIMEOUT = Long.getLong(PlannedMansionSlave.class.getName()+".connectTimeout", TimeUnit.MINUTES.toMillis(3));
+
+    /**
+     * How long to wait for a VM to boot, in ms.
+     */
+    public static long BOOT_TIMEOUT = Long.getLong(PlannedMansionSlave.class.getName()+".bootTimeout", TimeUnit.MINUTES.toMillis(10));
+
     public void setStatus(String status) {
         this.status = status;
     }
@@ -415,7 +822,13 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
     }
 
     public void onOnline() {
-        cloud.getBackOffCounter(st).clear();
+        breaker.recordSuccess();
+        long t = bootedAt;
+        if (t>0) {
+            long elapsed = System.currentTimeMillis()-t;
+            cloud.getBootToOnline().record(elapsed);
+            LOGGER.log(FINE, "{0} came online {1}ms after booting", new Object[]{getDisplayName(), elapsed});
+        }
         node = null; // no longer interesting
         status = "Online";
         cloud.getInProgressSet().update();
@@ -427,7 +840,7 @@ public class PlannedMansionSlave extends PlannedNode implements Callable<Node> {
     }
     
     public void onConnectFailure(Throwable problem) {
-        cloud.getBackOffCounter(st).recordError();
+        breaker.recordError();
         this.problem = problem;
         status = "Could not connect";
         cloud.getInProgressSet().update();
@@ -23,7 +23,7 @@ public class QuotaProblemProvsioningBlocker extends CloudProvisioningListener {
         if (cloud instanceof MansionCloud) {
             MansionCloud mc = (MansionCloud) cloud;
             SlaveTemplate st = SlaveTemplateList.get().get(label);
-            HardwareSpec box = mc.getBoxOf(st, label);
+            HardwareSpec box = mc.selectBox(st, mc.getBoxOf(st, label));
 
             if (mc.getQuotaProblems().isBlocked(box, st)) {
                 return new CauseOfBlockage() {
@@ -4,8 +4,6 @@ import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
 import com.cloudbees.mtslaves.client.HardwareSpec;
 import com.cloudbees.mtslaves.client.QuotaExceededException;
 import com.cloudbees.mtslaves.client.TooManyVirtualMachinesException;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
 import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.PeriodicWork;
@@ -15,14 +13,14 @@ import org.kohsuke.stapler.HttpRedirect;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
+import javax.annotation.CheckForNull;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
-import static com.google.common.collect.Iterators.concat;
-
 /**
  * Keeps track of problems related to quota over-usage.
  * Allows the user to view and manage these problems.
@@ -40,6 +38,12 @@ import static com.google.common.collect.Iterators.concat;
  * machines, you should still be allowed to provision
  * additional osx virtual machines.
  *
+ * <p>
+ * Problems are indexed by what they block (everything, a vmType, or a size of a vmType) and by their kind,
+ * so checking whether provisioning is blocked takes a few lookups, no matter how many problems we have.
+ * Each problem expires after a while, at which point the next provisioning attempt re-probes the broker.
+ * If the problem is still there, it comes back for longer.
+ *
  * @author Ryan Campbell
  */
 public class QuotaProblems implements Iterable<QuotaProblems.QuotaProblem> {
@@ -48,8 +52,24 @@ public class QuotaProblems implements Iterable<QuotaProblems.QuotaProblem> {
     public static class QuotaProblem {
         private final QuotaExceededException exception;
 
+        /**
+         * When does this problem lapse, in ms since the epoch?
+         */
+        private final long expiresAt;
+
+        /**
+         * How long this problem was set to last for.
+         */
+        private final long ttl;
+
         public QuotaProblem(QuotaExceededException e) {
+            this(e, defaultTtlOf(e));
+        }
+
+        private QuotaProblem(QuotaExceededException e, long ttl) {
             this.exception = e;
+            this.ttl = ttl;
+            this.expiresAt = System.currentTimeMillis()+ttl;
         }
 
         /**
@@ -75,6 +95,45 @@ public class QuotaProblems implements Iterable<QuotaProblems.QuotaProblem> {
             return exception.getVMType() != null && exception.getHardwareSize() == null;
         }
 
+        public boolean isTooManyVirtualMachines() {
+            return exception instanceof TooManyVirtualMachinesException;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+
+        /**
+         * When will we try again, in ms since the epoch?
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public String getVmType() {
+            return exception.getVMType();
+        }
+
+        /**
+         * Index key of what this problem blocks, or null if it can't block anything.
+         */
+        /*package*/ String getScope() {
+            if (blocksAll())
+                return GLOBAL;
+            if (exception.getVMType() == null)
+                return null;    // a size of no particular vmType; blocksProvisioningOf never matches this
+            return scopeOf(exception.getVMType(), exception.getHardwareSize());
+        }
+
+        /**
+         * Index key of this problem, or null if it can't block anything.
+         * Having too many VMs comes and goes, unlike the other problems, so we keep them apart.
+         */
+        /*package*/ String getKey() {
+            String scope = getScope();
+            return scope==null ? null : keyOf(scope, isTooManyVirtualMachines());
+        }
+
         public String getMessage() {
             if (blocksAll()) {
                 return exception.getMessage();
@@ -88,62 +147,134 @@ public class QuotaProblems implements Iterable<QuotaProblems.QuotaProblem> {
                         " from " + exception.getVMType() + " : " + exception.getMessage();
             }
         }
+
+        private static long defaultTtlOf(QuotaExceededException e) {
+            return e instanceof TooManyVirtualMachinesException ? TOO_MANY_VM_TTL : QUOTA_TTL;
+        }
     }
 
+    /**
+     * Current problems, keyed by {@link QuotaProblem#getKey()}.
+     */
+    private final ConcurrentMap<String,QuotaProblem> problems = new ConcurrentHashMap<String,QuotaProblem>();
 
     /**
      * General quota problems which we don't expect to change
      * unless a user upgrades, for example.
      */
-    private List<QuotaProblem> problems = new CopyOnWriteArrayList<QuotaProblem>();
+    public void addProblem(QuotaExceededException exception) {
+        add(exception);
+    }
 
     /**
      * These problems indicate the account is using
      * too many virtual machines. Since this state changes
-     * over time, these problems are cleared automatically
-     * so that the user doesn't have to take a manual action.
+     * over time, these problems expire sooner and are also cleared
+     * when we give back a VM, so that the user doesn't have to take a manual action.
      */
-    private List<QuotaProblem> tooManyVmProblems = new CopyOnWriteArrayList<QuotaProblem>();
+    public @CheckForNull QuotaProblem addTooManyVMProblem(TooManyVirtualMachinesException e) {
+        return add(e);
+    }
 
+    private QuotaProblem add(QuotaExceededException e) {
+        QuotaProblem p = new QuotaProblem(e);
+        String key = p.getKey();
+        if (key==null)
+            return null;
+        QuotaProblem old = problems.get(key);
+        if (old!=null) {
+            if (old.isExpired()) {
+                // still there after the last one lapsed, so wait longer before we try again
+                p = new QuotaProblem(e, Math.min(old.ttl*2, MAX_TTL));
+            } else {
+                // another request that was already on its way, which doesn't tell us anything new
+                p = new QuotaProblem(e, old.ttl);
+            }
+        }
+        problems.put(key, p);
+        return p;
+    }
 
-    public void addProblem(QuotaExceededException exception) {
-        problems.add(new QuotaProblem(exception));
+    public boolean isBlocked(HardwareSpec spec, SlaveTemplate template) {
+        String vmType = template.getMansionType();
+        return isBlocked(GLOBAL) || isBlocked(scopeOf(vmType, null)) || isBlocked(scopeOf(vmType, spec.size));
     }
 
-    public void addTooManyVMProblem(TooManyVirtualMachinesException e) {
-        tooManyVmProblems.add(new QuotaProblem(e));
+    private boolean isBlocked(String scope) {
+        return isInEffect(keyOf(scope, false)) || isInEffect(keyOf(scope, true));
     }
 
+    private boolean isInEffect(String key) {
+        QuotaProblem p = problems.get(key);
+        if (p==null)
+            return false;
+        if (p.isExpired()) {
+            // keep it around so that a recurrence backs off longer, but let the next attempt through
+            return false;
+        }
+        return true;
+    }
 
-    public boolean isBlocked(HardwareSpec spec, SlaveTemplate template) {
-        for (QuotaProblem p : Iterables.concat(problems, tooManyVmProblems)) {
-            if (p.blocksProvisioningOf(spec,template.getMansionType())) {
-                return true;
-            }
+    /**
+     * Forgets problems about having too many VMs of the given type, as we just gave one back.
+     */
+    public void onVirtualMachineReleased(String vmType) {
+        for (QuotaProblem p : problems.values()) {
+            if (p.isTooManyVirtualMachines() && vmType.equals(p.getVmType()))
+                problems.remove(p.getKey(), p);
         }
-        return false;
     }
 
+    /**
+     * Drops problems that have been expired for long enough that a recurrence counts as a new problem.
+     */
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for (QuotaProblem p : problems.values()) {
+            if (now >= p.expiresAt + p.ttl)
+                problems.remove(p.getKey(), p);
+        }
+    }
 
+    /**
+     * Problems that are currently in effect.
+     */
     public Iterator<QuotaProblem> iterator() {
-        return concat(problems.iterator(), tooManyVmProblems.iterator());
+        List<QuotaProblem> r = new ArrayList<QuotaProblem>();
+        for (QuotaProblem p : problems.values()) {
+            if (!p.isExpired())
+                r.add(p);
+        }
+        return r.iterator();
     }
 
     public Integer getSize() {
-        return problems.size() + tooManyVmProblems.size();
+        int n = 0;
+        for (QuotaProblem p : problems.values()) {
+            if (!p.isExpired())
+                n++;
+        }
+        return n;
     }
 
     @RequirePOST
     public HttpResponse doClear() {
         Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
         problems.clear();
-        tooManyVmProblems.clear();
         return new HttpRedirect(Jenkins.getInstance().getRootUrl());
 
     }
 
+    private static String scopeOf(String vmType, String size) {
+        return size==null ? vmType : vmType+'/'+size;
+    }
+
+    private static String keyOf(String scope, boolean tooManyVirtualMachines) {
+        return (tooManyVirtualMachines ? "tooMany:" : "quota:")+scope;
+    }
+
     /**
-     * Clear tooManyVmProblems list whenever we get rid of a computer.
+     * Clear problems about having too many VMs of a type whenever we get rid of a computer of that type.
      * Users shouldn't have to press retry if we know there
      * might be more capacity available.
      */
@@ -152,8 +283,11 @@ public class QuotaProblems implements Iterable<QuotaProblems.QuotaProblem> {
         @Override
         public void onOffline(Computer c) {
             if (c instanceof MansionComputer) {
+                MansionSlave s = ((MansionComputer) c).getNode();
+                if (s==null)    return;
+                String vmType = s.getTemplate().getMansionType();
                 for (MansionCloud cloud : Jenkins.getInstance().clouds.getAll(MansionCloud.class)) {
-                    cloud.getQuotaProblems().tooManyVmProblems.clear();
+                    cloud.getQuotaProblems().onVirtualMachineReleased(vmType);
                 }
             }
         }
@@ -161,9 +295,7 @@ public class QuotaProblems implements Iterable<QuotaProblems.QuotaProblem> {
 
 
     /**
-     * Periodically clear any quota issues related to having too many VMs.
-     * There are cases where the {@code TooManyVMCleaner} won't catch
-     * a change in system usage.
+     * Periodically drop old quota problems, so that they don't linger in the UI.
      */
     @Extension
     public static class PeriodicTooManyVMCleaner extends PeriodicWork {
@@ -171,7 +303,7 @@ public class QuotaProblems implements Iterable<QuotaProblems.QuotaProblem> {
         @Override
         protected void doRun() throws Exception {
             for (MansionCloud cloud : Jenkins.getInstance().clouds.getAll(MansionCloud.class)) {
-                cloud.getQuotaProblems().tooManyVmProblems.clear();
+                cloud.getQuotaProblems().purgeExpired();
             }
         }
 
@@ -180,4 +312,24 @@ public class QuotaProblems implements Iterable<QuotaProblems.QuotaProblem> {
             return TimeUnit.MINUTES.toMillis(5);
         }
     }
+
+    /**
+     * Key of the problems that block everything.
+     */
+    private static final String GLOBAL = "";
+
+    /**
+     * How long do we wait before re-probing after we are told we have too many VMs? In ms.
+     */
+    public static long TOO_MANY_VM_TTL = Long.getLong(QuotaProblems.class.getName()+".tooManyVmTtl", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How long do we wait before re-probing after other quota problems? In ms.
+     */
+    public static long QUOTA_TTL = Long.getLong(QuotaProblems.class.getName()+".quotaTtl", TimeUnit.MINUTES.toMillis(30));
+
+    /**
+     * Upper bound of the wait as a problem keeps coming back. In ms.
+     */
+    public static long MAX_TTL = Long.getLong(QuotaProblems.class.getName()+".maxTtl", TimeUnit.HOURS.toMillis(4));
 }
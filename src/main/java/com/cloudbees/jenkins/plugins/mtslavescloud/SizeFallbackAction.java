@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Marks a build that ran on a slave of a different size than it asked for,
+ * because of {@link SlaveTemplate#getSizeFallback()}.
+ */
+public class SizeFallbackAction extends InvisibleAction {
+    private final String requestedSize;
+    private final String actualSize;
+
+    public SizeFallbackAction(String requestedSize, String actualSize) {
+        this.requestedSize = requestedSize;
+        this.actualSize = actualSize;
+    }
+
+    public String getRequestedSize() {
+        return requestedSize;
+    }
+
+    public String getActualSize() {
+        return actualSize;
+    }
+
+    @Extension
+    public static class Marker extends RunListener<AbstractBuild> {
+        @Override
+        public void onStarted(AbstractBuild r, TaskListener listener) {
+            Node n = r.getBuiltOn();
+            if (!(n instanceof MansionSlave))
+                return;
+            MansionSlave s = (MansionSlave) n;
+            String requested = s.getRequestedSize(), actual = s.getActualSize();
+            if (requested==null || actual==null)
+                return;
+            r.addAction(new SizeFallbackAction(requested, actual));
+            listener.getLogger().println("Running on a " + actual + " slave as " + requested + " ones are unavailable right now");
+        }
+    }
+}
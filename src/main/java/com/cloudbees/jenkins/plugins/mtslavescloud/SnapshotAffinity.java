@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
+import com.cloudbees.mtslaves.client.HardwareSpec;
+import com.cloudbees.mtslaves.client.VirtualMachineRef;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Steers new virtual machines toward the mansion hosts that hold snapshots of their template,
+ * and keeps track of how often that works out.
+ *
+ * <p>
+ * Snapshots can only be used on the host that took them, so a VM that lands elsewhere starts from a cold image.
+ * The broker decides where a VM goes, so all we can do is to give back a VM that landed on a cold host
+ * and ask again, a limited number of times. Asking again costs a VM allocation, so it's opt-in, see {@link #RETRIES}.
+ */
+public class SnapshotAffinity {
+    private final AtomicLong warmPlacements = new AtomicLong();
+    private final AtomicLong coldPlacements = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Decides if we should give up the freshly allocated VM in the hope of getting one on a warm host.
+     * If so, the VM is disposed by this method.
+     *
+     * @param attempts
+     *      number of VMs we have already given up for this slave.
+     */
+    /*package*/ boolean shouldRetry(MansionCloud cloud, SlaveTemplate st, HardwareSpec box, VirtualMachineRef vm, int attempts) {
+        Set<String> warmHosts;
+        try {
+            warmHosts = st.getClan().getWarmHosts();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the clan of "+st.getName(), e);
+            return false;
+        }
+        if (warmHosts.isEmpty())
+            return false;   // no snapshots yet, so every host is as good as any other
+
+        if (warmHosts.contains(vm.url.getHost())) {
+            warmPlacements.incrementAndGet();
+            return false;
+        }
+
+        // if the broker is already having a hard time, take what we've got
+        if (attempts >= RETRIES || cloud.isBackOffInEffect(st, box)
+                || cloud.getQuotaProblems().isBlocked(box, st)) {
+            coldPlacements.incrementAndGet();
+            return false;
+        }
+
+        LOGGER.log(Level.FINE, "{0} landed on {1}, which has no snapshots of {2}. Asking again",
+                new Object[]{vm.url, vm.url.getHost(), st.getName()});
+        retries.incrementAndGet();
+        try {
+            vm.dispose();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to dispose "+vm.url, e);
+        }
+        return true;
+    }
+
+    /**
+     * Number of VMs that started from a snapshot host.
+     */
+    public long getWarmPlacements() {
+        return warmPlacements.get();
+    }
+
+    /**
+     * Number of VMs that had to start from a cold image although a snapshot existed elsewhere.
+     */
+    public long getColdPlacements() {
+        return coldPlacements.get();
+    }
+
+    /**
+     * Number of VMs we gave back to the broker because they landed on a cold host.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Percentage of VMs that landed on a snapshot host, among those that could have.
+     *
+     * @return -1 if there's no data yet.
+     */
+    public int getHitRate() {
+        long w = getWarmPlacements();
+        long total = w + getColdPlacements();
+        return total == 0 ? -1 : (int) (w * 100 / total);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotAffinity.class.getName());
+
+    /**
+     * How many VMs do we give back to the broker for a single slave before we settle for a cold host?
+     * 0, the default, to never give one back.
+     */
+    public static int RETRIES = Integer.getInteger(SnapshotAffinity.class.getName()+".retries", 0);
+}
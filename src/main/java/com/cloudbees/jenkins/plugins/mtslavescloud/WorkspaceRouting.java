@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import com.cloudbees.jenkins.plugins.mtslavescloud.templates.SlaveTemplate;
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.labels.LabelAtom;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Matches queued builds with slaves that start from the snapshot of their own workspace,
+ * for templates that keep {@linkplain SlaveTemplate#isPerJobWorkspaces() a workspace per job}.
+ *
+ * <p>
+ * When a VM is allocated, we look for the oldest build in the queue whose job has a workspace snapshot
+ * that VM can use, set up the VM with it, and then keep other builds off that slave for a little while
+ * so that the build actually lands there.
+ */
+public class WorkspaceRouting {
+    /**
+     * Picks the job whose workspace the given slave should be set up with.
+     *
+     * @param warmJobs
+     *      Jobs that have a workspace snapshot the VM can use.
+     */
+    /*package*/ static @CheckForNull String pick(PlannedMansionSlave p, Set<String> warmJobs) {
+        if (warmJobs.isEmpty())
+            return null;
+
+        // don't set up two slaves for the same build
+        Set<String> taken = new HashSet<String>();
+        for (PlannedMansionSlave o : p.getTemplate().getMansion().getInProgressSet()) {
+            if (o!=p && o.getJob()!=null)
+                taken.add(o.getJob());
+        }
+
+        return pick(p.getLabel(), warmJobs, taken);
+    }
+
+    /**
+     * @param label
+     *      Label the slave is provisioned with.
+     * @param taken
+     *      Jobs that other slaves are already being set up for.
+     */
+    /*package*/ static @CheckForNull String pick(@CheckForNull Label label, Set<String> warmJobs, Set<String> taken) {
+        // the labels the slave will have, so that we only pick builds that can run there
+        Set<LabelAtom> atoms = label==null ? null : Label.parse(label.getDisplayName());
+        BuildableItem best = null;
+        for (BuildableItem bi : Jenkins.getInstance().getQueue().getBuildableItems()) {
+            String job = jobOf(bi.task);
+            if (job==null || !warmJobs.contains(job) || taken.contains(job))
+                continue;
+            Label assigned = bi.getAssignedLabel();
+            if (atoms!=null && assigned!=null && !assigned.matches(atoms))
+                continue;
+            if (best==null || bi.getInQueueSince()<best.getInQueueSince())
+                best = bi;
+        }
+        return best==null ? null : jobOf(best.task);
+    }
+
+    /**
+     * Full name of the job that owns the workspace the given task builds in.
+     */
+    /*package*/ static @CheckForNull String jobOf(Queue.Task task) {
+        if (task instanceof AbstractProject)
+            return ((AbstractProject<?,?>) task).getRootProject().getFullName();
+        if (task instanceof Item)
+            return ((Item) task).getFullName();
+        return null;
+    }
+
+    private static boolean isQueued(String job) {
+        for (BuildableItem bi : Jenkins.getInstance().getQueue().getBuildableItems()) {
+            if (job.equals(jobOf(bi.task)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Keeps other builds off a slave that's held for a job.
+     */
+    @Extension
+    public static class Dispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canTake(Node node, BuildableItem item) {
+            if (!(node instanceof MansionSlave))
+                return null;
+            final String job = ((MansionSlave) node).getReservation();
+            if (job==null || job.equals(jobOf(item.task)) || !isQueued(job))
+                return null;
+            final String name = node.getNodeName();
+            return new CauseOfBlockage() {
+                @Override
+                public String getShortDescription() {
+                    return name+" is held for the workspace of "+job;
+                }
+            };
+        }
+    }
+
+    /**
+     * How long do we hold a slave for its job after it connects?
+     */
+    public static int RESERVATION_SECONDS = Integer.getInteger(WorkspaceRouting.class.getName()+".reservationSeconds", 60);
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud.templates;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.CheckForNull;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file system that's mounted into every slave of a template to hold a cache, such as {@code ~/.m2},
+ * and carried over from one slave to the next with its own {@link FileSystemLineage}.
+ *
+ * <p>
+ * Unlike {@linkplain SlaveTemplate#getPersistentFileSystems() the persistent file systems of the template}, which
+ * are snapshotted as per {@link SnapshotPolicy}, a cache volume has its own snapshot frequency, so that the cache
+ * stays warm regardless of what happens to the workspace, and its snapshots survive changes to the base image.
+ *
+ * <p>
+ * The mansion doesn't tell us how big a snapshot is, so a cache is kept from growing forever by starting it
+ * over after {@linkplain #getMaxGenerations() a number of snapshots} rather than at a size.
+ */
+public class CacheVolume extends AbstractDescribableImpl<CacheVolume> {
+    /**
+     * Where is this volume mounted in the slave?
+     */
+    private final String path;
+
+    /**
+     * URL of the file system the volume starts from when we have no snapshot yet.
+     */
+    private final String fileSystem;
+
+    /**
+     * Minimum number of minutes between two snapshots. 0 to snapshot every time.
+     */
+    private final int snapshotInterval;
+
+    /**
+     * Number of generations after which the cache starts over from {@link #fileSystem}, to keep it from growing
+     * forever. 0 for no limit.
+     */
+    private final int maxGenerations;
+
+    /**
+     * If true, other templates of the same mansion type that declare a shared cache volume at the same path
+     * use each other's snapshots.
+     */
+    private final boolean shared;
+
+    @DataBoundConstructor
+    public CacheVolume(String path, String fileSystem, int snapshotInterval, int maxGenerations, boolean shared) {
+        this.path = Util.fixEmptyAndTrim(path);
+        this.fileSystem = Util.fixEmptyAndTrim(fileSystem);
+        this.snapshotInterval = snapshotInterval;
+        this.maxGenerations = maxGenerations;
+        this.shared = shared;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getFileSystem() {
+        return fileSystem;
+    }
+
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public int getMaxGenerations() {
+        return maxGenerations;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Is it time for another snapshot, given when the last one was taken?
+     */
+    public boolean isSnapshotDue(long lastSnapshotTimestamp) {
+        return System.currentTimeMillis() - lastSnapshotTimestamp >= TimeUnit.MINUTES.toMillis(snapshotInterval);
+    }
+
+    public URL getFileSystemUrl() throws MalformedURLException {
+        return new URL(fileSystem);
+    }
+
+    /**
+     * Identifies the snapshots of this volume. Unlike {@link SlaveTemplate#getSpecFingerprint()}, this doesn't
+     * change with the base image, only with where the volume is mounted and what it starts from.
+     */
+    public String getFingerprint() {
+        return Util.getDigestOf("cache:"+path+'\n'+fileSystem);
+    }
+
+    /**
+     * Checks the mount point of a cache volume.
+     *
+     * @return what's wrong with it, or null if it's fine.
+     */
+    public static @CheckForNull String checkPath(@CheckForNull String path) {
+        if (path==null || !path.startsWith("/"))
+            return "The path of a cache volume must be absolute";
+        if (normalize(path).length()==0)
+            return "A cache volume can't be mounted at /";
+        return null;
+    }
+
+    /**
+     * Is one of the two paths the same as, or inside, the other?
+     */
+    /*package*/ static boolean overlaps(String a, String b) {
+        a = normalize(a)+'/';
+        b = normalize(b)+'/';
+        return a.startsWith(b) || b.startsWith(a);
+    }
+
+    /**
+     * Trims trailing slashes, so that {@code /} becomes the empty string.
+     */
+    private static String normalize(String path) {
+        String p = path.trim();
+        while (p.endsWith("/"))
+            p = p.substring(0, p.length()-1);
+        return p;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<CacheVolume> {
+        @Override
+        public String getDisplayName() {
+            return "Cache Volume";
+        }
+
+        public FormValidation doCheckPath(@QueryParameter String value) {
+            String problem = checkPath(Util.fixEmptyAndTrim(value));
+            return problem==null ? FormValidation.ok() : FormValidation.error(problem);
+        }
+
+        public FormValidation doCheckFileSystem(@QueryParameter String value) {
+            try {
+                new URL(value);
+                return FormValidation.ok();
+            } catch (MalformedURLException e) {
+                return FormValidation.error("Not a valid URL");
+            }
+        }
+    }
+}
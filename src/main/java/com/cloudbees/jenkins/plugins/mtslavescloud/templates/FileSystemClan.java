@@ -32,18 +32,32 @@ import com.cloudbees.mtslaves.client.VirtualMachine;
 import com.cloudbees.mtslaves.client.VirtualMachineRef;
 import com.cloudbees.mtslaves.client.VirtualMachineSpec;
 import com.cloudbees.mtslaves.client.properties.FileSystemsProperty;
+import hudson.Extension;
 import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
 import hudson.util.HttpResponses;
+import jenkins.util.Timer;
+import net.jcip.annotations.GuardedBy;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
+import javax.annotation.CheckForNull;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.logging.Level;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.*;
@@ -51,6 +65,15 @@ import static java.util.logging.Level.*;
 /**
  * A set of {@link FileSystemLineage}s that are used together for a single {@link SlaveTemplate}.
  *
+ * <p>
+ * There's only one instance per template, kept in memory by {@link SlaveTemplate#getClan()}.
+ * Changes are written back to the disk lazily via {@link #saveLater()}, so that a burst of
+ * terminating slaves only results in one write.
+ *
+ * <p>
+ * Slaves of the same template can terminate concurrently, so all the access to {@link #lineages}
+ * is guarded by the clan itself. Talking to the mansion, which is slow, happens outside the lock.
+ *
  * @author Kohsuke Kawaguchi
  * @author Ryan Campbell
  */
@@ -61,61 +84,174 @@ public class FileSystemClan implements Iterable<FileSystemLineage> {
      */
     private final transient SlaveTemplate template;
 
+    @GuardedBy("this")
     private Long lastDestroyDate = null;
 
+    @GuardedBy("this")
     private final List<FileSystemLineage> lineages = new ArrayList<FileSystemLineage>();
 
+    /**
+     * Set while there's a {@link #saveLater()} write that hasn't happened yet.
+     */
+    private final transient AtomicBoolean savePending = new AtomicBoolean();
+
     FileSystemClan(MansionCloud cloud, SlaveTemplate template) {
         if (cloud==null)    throw new IllegalArgumentException();
         this.cloud = cloud;
         this.template = template;
     }
 
-    public boolean isEmpty() {
+    public SlaveTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * The cloud this clan talks to when it disposes snapshots.
+     */
+    /*package*/ MansionCloud getCloud() {
+        return cloud;
+    }
+
+    public synchronized boolean isEmpty() {
         return lineages.isEmpty();
     }
 
-    public Iterator<FileSystemLineage> iterator() {
-        return lineages.iterator();
+    /**
+     * Iterates over a copy of the current lineages, so that it can't be disturbed by concurrent updates.
+     */
+    public synchronized Iterator<FileSystemLineage> iterator() {
+        return new ArrayList<FileSystemLineage>(lineages).iterator();
     }
 
     /**
      * The file in which we store the latest snapshots of workspace file systems.
      */
-    private XmlFile getPersistentFileSystemRecordFile() {
+    private LineageStore getStore() {
+        return new LineageStore(new File(template.getRootDir(),"clan.dat"));
+    }
+
+    /**
+     * Where we used to store the clan, before {@link LineageStore}.
+     */
+    private XmlFile getLegacyRecordFile() {
         return new XmlFile(new File(template.getRootDir(),"clan.xml"));
     }
 
     public void add(FileSystemLineage newFsl) {
-        for (FileSystemLineage existingFsl : lineages) {
-            if (newFsl.osbsoletes(existingFsl)) {
-                lineages.remove(existingFsl);
-
-                // since we will be forgetting about this snapshot, tell mansion that it can be gone now
-                try {
-                    SnapshotRef ref = existingFsl.getRef(cloud);
-                    ref.dispose();
-                    LOGGER.info("Disposed snapshot "+ref.url);
-                } catch (IOException e) {
-                    LOGGER.log(WARNING, "Failed to dispose "+existingFsl.getSnapshot(),e);
-                } catch (OauthClientException e) {
-                    LOGGER.log(WARNING, "Failed to dispose "+existingFsl.getSnapshot(),e);
+        List<FileSystemLineage> obsoleted = new ArrayList<FileSystemLineage>();
+        synchronized (this) {
+            boolean superseded = false;
+            for (Iterator<FileSystemLineage> itr = lineages.iterator(); itr.hasNext(); ) {
+                FileSystemLineage existingFsl = itr.next();
+                if (newFsl.osbsoletes(existingFsl)) {
+                    itr.remove();
+                    obsoleted.add(existingFsl);
+                } else if (existingFsl.osbsoletes(newFsl)) {
+                    superseded = true;
                 }
-                break;
             }
+            if (superseded)
+                obsoleted.add(newFsl);  // we already have something newer on that host
+            else
+                lineages.add(newFsl);
+        }
+
+        // since we will be forgetting about these snapshots, tell mansion that they can be gone now
+        for (FileSystemLineage fsl : obsoleted) {
+            dispose(fsl);
+        }
+    }
+
+    /**
+     * Drops a lineage whose snapshot the mansion refused to set up a VM from,
+     * so that we stop offering it to new VMs. The other lineages are left intact.
+     */
+    public void quarantine(FileSystemLineage fsl) {
+        synchronized (this) {
+            if (!lineages.remove(fsl))
+                return; // somebody else got to it first
         }
-        lineages.add(newFsl);
+
+        LOGGER.log(WARNING, "Dropping snapshot {0} of {1} from the clan of {2}",
+                new Object[]{fsl.getSnapshot(), fsl.getPath(), template.getName()});
+        dispose(fsl);
+        saveLater();
     }
 
-    public void load() throws IOException {
-        XmlFile props = getPersistentFileSystemRecordFile();
-        if (props.exists()) {
-            props.unmarshal(this);
+    /**
+     * Tells mansion that we no longer need the snapshot of the given lineage.
+     *
+     * If this fails, {@link SnapshotLedger.Collector} will try again later.
+     */
+    /*package*/ void dispose(FileSystemLineage fsl) {
+        try {
+            SnapshotRef ref = fsl.getRef(cloud);
+            ref.dispose();
+            LOGGER.info("Disposed snapshot "+ref.url);
+            SlaveTemplateList.get().getSnapshotLedger().forget(fsl.getSnapshot());
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Failed to dispose "+fsl.getSnapshot(),e);
+        } catch (OauthClientException e) {
+            LOGGER.log(WARNING, "Failed to dispose "+fsl.getSnapshot(),e);
         }
     }
 
-    public void save() throws IOException {
-        getPersistentFileSystemRecordFile().write(this);
+    public synchronized void load() throws IOException {
+        LineageStore store = getStore();
+        if (store.exists()) {
+            LineageStore.Contents c = store.read();
+            lastDestroyDate = c.lastDestroyDate;
+            lineages.clear();
+            lineages.addAll(c.lineages);
+            return;
+        }
+
+        XmlFile legacy = getLegacyRecordFile();
+        if (legacy.exists()) {
+            legacy.unmarshal(this);
+            save();
+            if (!legacy.getFile().delete())
+                LOGGER.log(WARNING, "Failed to delete {0}", legacy);
+            LOGGER.log(FINE, "Migrated {0}", legacy);
+        }
+    }
+
+    /**
+     * Writes the clan to the disk right now.
+     *
+     * {@link LineageStore} writes to a temporary file first, so a crash during the write won't leave a corrupted file behind.
+     */
+    public synchronized void save() throws IOException {
+        getStore().write(lastDestroyDate, lineages);
+    }
+
+    /**
+     * Schedules a {@link #save()} in the near future.
+     *
+     * All the changes that happen until then get written together.
+     */
+    public void saveLater() {
+        if (savePending.compareAndSet(false,true)) {
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes out the changes pending from {@link #saveLater()}, if any.
+     */
+    public void flush() {
+        // clear the flag before writing, so that a change made during the write schedules another one
+        if (savePending.compareAndSet(true,false)) {
+            try {
+                save();
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to persist the clan",e);
+            }
+        }
     }
 
     public void applyTo(VirtualMachineSpec spec, VirtualMachineRef vm) {
@@ -124,6 +260,184 @@ public class FileSystemClan implements Iterable<FileSystemLineage> {
         }
     }
 
+    /**
+     * Lineages whose snapshots {@link #applyTo(VirtualMachineSpec, VirtualMachineRef)} would use for the given VM.
+     */
+    public List<FileSystemLineage> getApplicableLineages(VirtualMachineRef vm) {
+        return getApplicableLineages(vm, null);
+    }
+
+    /**
+     * Lineages to set up the given VM with, for building the given job.
+     *
+     * @param job
+     *      Full name of the job, if we know which job the VM is for. The workspace of that job is
+     *      preferred over the one shared by all the jobs.
+     */
+    public List<FileSystemLineage> getApplicableLineages(VirtualMachineRef vm, @CheckForNull String job) {
+        pruneStale(template.getSpecFingerprint());
+
+        Map<String,FileSystemLineage> byPath = new LinkedHashMap<String,FileSystemLineage>();
+        for (FileSystemLineage e : this) {
+            if (!e.isApplicableTo(vm))
+                continue;
+            if (e.getJob()==null) {
+                if (!byPath.containsKey(e.getPath()))
+                    byPath.put(e.getPath(), e);
+            } else if (e.getJob().equals(job)) {
+                byPath.put(e.getPath(), e);
+            }
+        }
+        List<FileSystemLineage> r = new ArrayList<FileSystemLineage>(byPath.values());
+        Set<String> paths = byPath.keySet();
+
+        // for shared cache volumes we don't have a snapshot of, borrow one from another template
+        for (CacheVolume v : template.getCacheVolumes()) {
+            if (!v.isShared() || paths.contains(v.getPath()))
+                continue;
+            FileSystemLineage best = null;
+            for (SlaveTemplate t : SlaveTemplateList.get().getItems()) {
+                if (t==template || !t.sharesCacheVolumeWith(template, v.getPath()))
+                    continue;
+                CacheVolume theirs = t.getCacheVolume(v.getPath());
+                if (theirs==null)
+                    continue;
+                try {
+                    String fingerprint = theirs.getFingerprint();
+                    for (FileSystemLineage e : t.getClan()) {
+                        if (e.getPath().equals(v.getPath()) && e.isApplicableTo(vm) && !e.isStale(fingerprint)
+                                && (best==null || e.getTimestamp()>best.getTimestamp()))
+                            best = e;
+                    }
+                } catch (IOException x) {
+                    LOGGER.log(WARNING, "Failed to load the clan of "+t.getName(), x);
+                }
+            }
+            if (best!=null)
+                r.add(best);
+        }
+        return r;
+    }
+
+    /**
+     * Drops lineages that were started from an older spec of the template, such as before its base image
+     * was changed. The snapshots are disposed in the background.
+     *
+     * Caches don't depend on the base image, so their lineages only go stale when their {@link CacheVolume} changes.
+     */
+    private void pruneStale(String fingerprint) {
+        Map<String,String> caches = new HashMap<String,String>();
+        for (CacheVolume v : template.getCacheVolumes()) {
+            caches.put(v.getPath(), v.getFingerprint());
+        }
+        final List<FileSystemLineage> stale = new ArrayList<FileSystemLineage>();
+        synchronized (this) {
+            for (Iterator<FileSystemLineage> itr = lineages.iterator(); itr.hasNext(); ) {
+                FileSystemLineage e = itr.next();
+                String expected = e.getJob()==null && caches.containsKey(e.getPath()) ? caches.get(e.getPath()) : fingerprint;
+                if (e.isStale(expected)) {
+                    itr.remove();
+                    stale.add(e);
+                }
+            }
+        }
+        if (stale.isEmpty())
+            return;
+
+        LOGGER.log(INFO, "Template {0} has changed, so discarding {1} snapshots taken from its old spec",
+                new Object[]{template.getName(), stale.size()});
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                for (FileSystemLineage e : stale) {
+                    dispose(e);
+                }
+            }
+        });
+        saveLater();
+    }
+
+    /**
+     * Jobs that have their own workspace snapshots that the given VM can start from.
+     */
+    public Set<String> getWarmJobs(VirtualMachineRef vm) {
+        Set<String> r = new HashSet<String>();
+        for (FileSystemLineage e : this) {
+            if (e.getJob()!=null && e.isApplicableTo(vm))
+                r.add(e.getJob());
+        }
+        return r;
+    }
+
+    /**
+     * Moves the workspace snapshots of a job over to its new name.
+     */
+    public void rename(String oldJob, String newJob) {
+        boolean changed = false;
+        synchronized (this) {
+            for (ListIterator<FileSystemLineage> itr = lineages.listIterator(); itr.hasNext(); ) {
+                FileSystemLineage e = itr.next();
+                if (oldJob.equals(e.getJob())) {
+                    itr.set(new FileSystemLineage(e.getPath(), e.getSnapshot(), e.getTimestamp(), e.getGeneration(),
+                            newJob, e.getSpecFingerprint()).withBuildCount(e.getBuildCount()));
+                    changed = true;
+                }
+            }
+        }
+        if (changed)
+            saveLater();
+    }
+
+    /**
+     * Forgets the workspace snapshots of a job, such as when the job is deleted.
+     */
+    public void retire(String job) {
+        List<FileSystemLineage> retired = new ArrayList<FileSystemLineage>();
+        synchronized (this) {
+            for (Iterator<FileSystemLineage> itr = lineages.iterator(); itr.hasNext(); ) {
+                FileSystemLineage e = itr.next();
+                if (job.equals(e.getJob())) {
+                    itr.remove();
+                    retired.add(e);
+                }
+            }
+        }
+        if (retired.isEmpty())
+            return;
+        for (FileSystemLineage e : retired) {
+            dispose(e);
+        }
+        saveLater();
+    }
+
+    /**
+     * When was the newest snapshot of the {@linkplain SlaveTemplate#getPersistentFileSystems() persistent file systems}
+     * of this clan taken? Cache volumes are snapshotted on their own schedule, so they don't count.
+     *
+     * @return ms since the epoch, or 0 if we don't have any snapshot
+     */
+    public long getLastSnapshotTimestamp() {
+        Set<String> paths = new HashSet<String>(template.getPersistentFileSystems());
+        long r = 0;
+        for (FileSystemLineage e : this) {
+            if (paths.contains(e.getPath()))
+                r = Math.max(r, e.getTimestamp());
+        }
+        return r;
+    }
+
+    /**
+     * Mansion hosts that hold at least one snapshot of this clan.
+     *
+     * A VM that lands on one of these hosts starts from a warm cache.
+     */
+    public Set<String> getWarmHosts() {
+        Set<String> r = new HashSet<String>();
+        for (FileSystemLineage e : this) {
+            r.add(e.getSnapshot().getHost());
+        }
+        return r;
+    }
+
     /**
      * Takes snapshots of the current file systems attached to the given VM and
      * use that as the latest generation of this clan.
@@ -132,49 +446,124 @@ public class FileSystemClan implements Iterable<FileSystemLineage> {
      * taken. This can happen when snapshots are 'cleared' while a VM is running.
      */
     public void update(VirtualMachine vm, Long vmCreatedDate) {
+        update(vm, vmCreatedDate, null, 0);
+    }
+
+    /**
+     * Like {@link #update(VirtualMachine, Long)}, but records the persistent file systems as the workspace
+     * of the given job.
+     *
+     * @param buildCount
+     *      Number of builds that ran on the VM, recorded along with the snapshots.
+     */
+    public void update(VirtualMachine vm, Long vmCreatedDate, @CheckForNull String job, int buildCount) {
         FileSystemsProperty fsp = vm.getProperty(FileSystemsProperty.class);
         if (fsp==null)  return;
-        if (lastDestroyDate != null && lastDestroyDate > vmCreatedDate) return;
+        if (isDestroyedSince(vmCreatedDate)) return;
 
+        String fingerprint = template.getSpecFingerprint();
+        pruneStale(fingerprint);
         for (String persistedPath : template.getPersistentFileSystems()) {
             URL fs = fsp.getFileSystemUrlFor(persistedPath);
             if (fs==null)   continue;   // shouldn't happen, but let's be defensive
 
-            try {
-                FileSystemRef fsr = new FileSystemRef(fs,cloud.createAccessToken(fs));
-                SnapshotRef snapshot = fsr.snapshot();
-                add(new FileSystemLineage(persistedPath,snapshot.url));
-            } catch (IOException e) {
-                LOGGER.log(WARNING, "Failed to take snapshot of "+fs,e);
-            } catch (OauthClientException e) {
-                LOGGER.log(WARNING, "Failed to take snapshot of "+fs,e);
+            snapshot(fs, persistedPath, 0, job, fingerprint, buildCount, vmCreatedDate);
+        }
+        updateCaches(fsp, vmCreatedDate);
+        saveLater();
+    }
+
+    /**
+     * Takes snapshots of just the {@linkplain SlaveTemplate#getCacheVolumes() cache volumes} of the given VM
+     * that are due for one.
+     *
+     * {@link #update(VirtualMachine, Long)} does this, too.
+     */
+    public void updateCaches(VirtualMachine vm, Long vmCreatedDate) {
+        FileSystemsProperty fsp = vm.getProperty(FileSystemsProperty.class);
+        if (fsp==null)  return;
+        if (isDestroyedSince(vmCreatedDate)) return;
+
+        pruneStale(template.getSpecFingerprint());
+        updateCaches(fsp, vmCreatedDate);
+        saveLater();
+    }
+
+    private void updateCaches(FileSystemsProperty fsp, Long vmCreatedDate) {
+        for (CacheVolume v : template.getCacheVolumes()) {
+            URL fs = fsp.getFileSystemUrlFor(v.getPath());
+            if (fs==null)   continue;
+
+            FileSystemLineage current = null;
+            long last = 0;
+            for (FileSystemLineage e : this) {
+                if (!e.getPath().equals(v.getPath()) || e.getJob()!=null)
+                    continue;
+                last = Math.max(last, e.getTimestamp());
+                if (e.getSnapshot().getHost().equals(fs.getHost()))
+                    current = e;
+            }
+            if (!v.isSnapshotDue(last))
+                continue;
+
+            int generation = current==null ? 1 : current.getGeneration()+1;
+            if (v.getMaxGenerations()>0 && generation>v.getMaxGenerations()) {
+                // this cache has grown old enough, so let the next slave on this host start from scratch
+                LOGGER.log(FINE, "Starting {0} over after {1} generations", new Object[]{current, v.getMaxGenerations()});
+                synchronized (this) {
+                    if (!lineages.remove(current))
+                        continue;
+                }
+                dispose(current);
+                continue;
             }
+            snapshot(fs, v.getPath(), generation, null, v.getFingerprint(), 0, vmCreatedDate);
         }
+    }
+
+    /**
+     * Takes a snapshot of the given file system and adds it to the clan.
+     */
+    private void snapshot(URL fs, String path, int generation, String job, String specFingerprint, int buildCount, Long vmCreatedDate) {
         try {
-            save();
+            FileSystemRef fsr = new FileSystemRef(fs,cloud.createAccessToken(fs));
+            SnapshotRef snapshot = fsr.snapshot();
+            SlaveTemplateList.get().getSnapshotLedger().record(template, snapshot.url);
+            FileSystemLineage fsl = new FileSystemLineage(path,snapshot.url,System.currentTimeMillis(),generation,job,specFingerprint)
+                    .withBuildCount(buildCount);
+            if (isDestroyedSince(vmCreatedDate)) {
+                // the clan got discarded while we were taking the snapshot
+                dispose(fsl);
+            } else {
+                add(fsl);
+            }
         } catch (IOException e) {
-            LOGGER.log(WARNING, "Failed to persist the clan",e);
+            LOGGER.log(WARNING, "Failed to take snapshot of "+fs,e);
+        } catch (OauthClientException e) {
+            LOGGER.log(WARNING, "Failed to take snapshot of "+fs,e);
         }
     }
 
+    private synchronized boolean isDestroyedSince(Long timestamp) {
+        return lastDestroyDate != null && lastDestroyDate > timestamp;
+    }
+
     /**
      * Deletes all the current snapshots and reverts to the clean image.
      */
     @RequirePOST
     public HttpResponse doDispose() throws IOException, OauthClientException {
         template.checkPermission(SlaveTemplate.CONFIGURE);
-        for (FileSystemLineage l: this) {
-            try {
-                l.getRef(cloud).dispose();
-            } catch (IOException ioe) {
-                LOGGER.log(Level.WARNING, "Failed to delete snapshot " +l.getSnapshot(),ioe);
-            } catch (OauthClientException oce) {
-                LOGGER.log(Level.WARNING, "Failed to delete snapshot " +l.getSnapshot(), oce);
-            }
-        }
-        try {
+        List<FileSystemLineage> discarded;
+        synchronized (this) {
+            discarded = new ArrayList<FileSystemLineage>(lineages);
             lineages.clear();
             lastDestroyDate = System.currentTimeMillis();
+        }
+        for (FileSystemLineage l: discarded) {
+            dispose(l);
+        }
+        try {
             save();
         } catch (IOException e) {
             LOGGER.log(WARNING, "Failed to persist the clan",e);
@@ -183,5 +572,64 @@ public class FileSystemClan implements Iterable<FileSystemLineage> {
         return HttpResponses.forwardToPreviousPage();
     }
 
+    /**
+     * Makes sure changes waiting in {@link #saveLater()} make it to the disk before we shut down,
+     * and keeps the workspaces of jobs in step with the jobs being renamed, moved, or deleted.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (!(item instanceof Job))
+                return;
+            for (FileSystemClan clan : perJobClans()) {
+                clan.retire(item.getFullName());
+            }
+        }
+
+        /**
+         * Called on renames as well as moves, with the full names.
+         */
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (!(item instanceof Job))
+                return;
+            for (FileSystemClan clan : perJobClans()) {
+                clan.rename(oldFullName, newFullName);
+            }
+        }
+
+        private List<FileSystemClan> perJobClans() {
+            List<FileSystemClan> r = new ArrayList<FileSystemClan>();
+            SlaveTemplateList list = SlaveTemplateList.get();
+            if (list==null)     return r;
+            for (SlaveTemplate t : list.getItems()) {
+                if (!t.isPerJobWorkspaces())
+                    continue;
+                try {
+                    r.add(t.getClan());
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "Failed to load the clan of "+t.getName(), e);
+                }
+            }
+            return r;
+        }
+
+        @Override
+        public void onBeforeShutdown() {
+            SlaveTemplateList list = SlaveTemplateList.get();
+            if (list==null)     return;
+            for (SlaveTemplate t : list.getItems()) {
+                t.flushClan();
+            }
+            list.getSnapshotLedger().flush();
+        }
+    }
+
     private static final Logger LOGGER = Logger.getLogger(FileSystemClan.class.getName());
+
+    /**
+     * How long do we wait to collect changes before writing the clan to the disk?
+     */
+    public static long SAVE_DELAY_MILLIS = Long.getLong(FileSystemClan.class.getName()+".saveDelay", TimeUnit.SECONDS.toMillis(5));
 }
@@ -31,6 +31,8 @@ import com.cloudbees.mtslaves.client.VirtualMachineRef;
 import com.cloudbees.mtslaves.client.VirtualMachineSpec;
 import hudson.AbortException;
 
+import javax.annotation.CheckForNull;
+
 import java.net.URL;
 
 /**
@@ -62,9 +64,44 @@ public class FileSystemLineage {
      */
     private URL snapshot;
 
+    /**
+     * When was the snapshot taken? Null for records made before we started keeping track of this.
+     */
+    private Long timestamp;
+
+    /**
+     * How many snapshots deep is this lineage from the original file system? 0 if unknown.
+     */
+    private int generation;
+
+    /**
+     * Full name of the job whose workspace this is, if the template keeps
+     * {@linkplain SlaveTemplate#isPerJobWorkspaces() a lineage per job}. Null if this is shared by all the jobs.
+     */
+    private String job;
+
+    /**
+     * {@link SlaveTemplate#getSpecFingerprint()} of the template when the lineage started.
+     * Null for records made before we started keeping track of this.
+     */
+    private String spec;
+
+    /**
+     * Number of builds that ran on the slave the snapshot was taken from. 0 if unknown.
+     */
+    private int buildCount;
+
     FileSystemLineage(String path, URL snapshot) {
+        this(path, snapshot, System.currentTimeMillis(), 0, null, null);
+    }
+
+    FileSystemLineage(String path, URL snapshot, Long timestamp, int generation, @CheckForNull String job, @CheckForNull String spec) {
         this.path = path;
         this.snapshot = snapshot;
+        this.timestamp = timestamp;
+        this.generation = generation;
+        this.job = job;
+        this.spec = spec;
     }
 
     public String getPath() {
@@ -75,11 +112,75 @@ public class FileSystemLineage {
         return snapshot;
     }
 
-    void applyTo(VirtualMachineSpec spec, VirtualMachineRef vm) {
-        if (snapshot.getHost().equals(vm.url.getHost()))
+    public int getGeneration() {
+        return generation;
+    }
+
+    public @CheckForNull String getJob() {
+        return job;
+    }
+
+    public @CheckForNull String getSpecFingerprint() {
+        return spec;
+    }
+
+    public int getBuildCount() {
+        return buildCount;
+    }
+
+    /*package*/ FileSystemLineage withBuildCount(int buildCount) {
+        this.buildCount = buildCount;
+        return this;
+    }
+
+    /**
+     * Was this lineage started from a different template spec than the given one?
+     *
+     * We can't tell for old records, so we give them the benefit of the doubt.
+     */
+    public boolean isStale(String specFingerprint) {
+        return spec!=null && !spec.equals(specFingerprint);
+    }
+
+    /**
+     * Is the other lineage a history of the same file system as this one, albeit maybe on another host?
+     */
+    public boolean isSameFileSystemAs(FileSystemLineage other) {
+        return other.path.equals(this.path) && (job==null ? other.job==null : job.equals(other.job));
+    }
+
+    /**
+     * When was the snapshot taken, in ms since the epoch? 0 if unknown.
+     */
+    public long getTimestamp() {
+        return timestamp==null ? 0 : timestamp;
+    }
+
+    public void applyTo(VirtualMachineSpec spec, VirtualMachineRef vm) {
+        if (isApplicableTo(vm))
             spec.fs(snapshot,path);
     }
 
+    /**
+     * Snapshots live on the mansion host that took them, so they can only be used by VMs on that same host.
+     */
+    public boolean isApplicableTo(VirtualMachineRef vm) {
+        return snapshot.getHost().equals(vm.url.getHost());
+    }
+
+    /**
+     * Does the given failure (or any of its causes) point the finger at the snapshot of this lineage?
+     */
+    public boolean isBlamedBy(Throwable t) {
+        String url = snapshot.toExternalForm();
+        for (; t!=null; t=t.getCause()) {
+            String msg = t.getMessage();
+            if (msg!=null && msg.contains(url))
+                return true;
+        }
+        return false;
+    }
+
     SnapshotRef getRef(MansionCloud mansion) throws AbortException, OauthClientException {
         return new SnapshotRef(snapshot,mansion.createAccessToken(snapshot));
     }
@@ -87,10 +188,19 @@ public class FileSystemLineage {
     /**
      * Tests whether an existing snapshot can be logically destroyed.
      *
+     * A snapshot never obsoletes a newer one of the same file system on the same host,
+     * which can happen when slaves of the same template terminate out of order.
+     *
      * @param other
      * @return true if the other can be safely destroyed.
      */
     public boolean osbsoletes(FileSystemLineage other) {
-        return other.path.equals(this.path) && other.snapshot.getHost().equals(this.snapshot.getHost());
+        return isSameFileSystemAs(other) && other.snapshot.getHost().equals(this.snapshot.getHost())
+                && this.getTimestamp() >= other.getTimestamp();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot+" at "+path+(job==null ? "" : " for "+job);
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud.templates;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary file that persists the lineages of a {@link FileSystemClan}.
+ *
+ * <p>
+ * The file is first written next to the real one, the previous version is moved aside as {@code .bak},
+ * and then the new one is renamed into place. A crash at any point leaves one complete version behind,
+ * which {@link #read()} falls back to.
+ */
+/*package*/ final class LineageStore {
+    private final File file;
+
+    private final File bak;
+
+    /*package*/ LineageStore(File file) {
+        this.file = file;
+        this.bak = new File(file.getPath()+".bak");
+    }
+
+    public boolean exists() {
+        return file.exists() || bak.exists();
+    }
+
+    /**
+     * What's in the store.
+     */
+    /*package*/ static final class Contents {
+        /*package*/ Long lastDestroyDate;
+        /*package*/ final List<FileSystemLineage> lineages = new ArrayList<FileSystemLineage>();
+    }
+
+    public Contents read() throws IOException {
+        // if we crashed between moving the old file aside and renaming the new one in, the old one is all we have
+        File file = this.file.exists() || !bak.exists() ? this.file : bak;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt()!=MAGIC)
+                throw new IOException(file+" is not a lineage store");
+            int version = in.readByte();
+            if (version!=VERSION)
+                throw new IOException("Unsupported version "+version+" of "+file);
+
+            Contents c = new Contents();
+            long d = in.readLong();
+            c.lastDestroyDate = d<0 ? null : d;
+            int n = in.readInt();
+            for (int i=0; i<n; i++) {
+                String path = in.readUTF();
+                URL snapshot = new URL(in.readUTF());
+                long timestamp = in.readLong();
+                int generation = in.readInt();
+                String job = readNullable(in);
+                String spec = readNullable(in);
+                int builds = in.readInt();
+                c.lineages.add(new FileSystemLineage(path, snapshot, timestamp==0 ? null : timestamp, generation, job, spec)
+                        .withBuildCount(builds));
+            }
+            return c;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public void write(Long lastDestroyDate, List<FileSystemLineage> lineages) throws IOException {
+        File dir = file.getParentFile();
+        if (dir!=null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create "+dir);
+        File tmp = new File(file.getPath()+".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(lastDestroyDate==null ? -1 : lastDestroyDate);
+            out.writeInt(lineages.size());
+            for (FileSystemLineage l : lineages) {
+                out.writeUTF(l.getPath());
+                out.writeUTF(l.getSnapshot().toExternalForm());
+                out.writeLong(l.getTimestamp());
+                out.writeInt(l.getGeneration());
+                writeNullable(out, l.getJob());
+                writeNullable(out, l.getSpecFingerprint());
+                out.writeInt(l.getBuildCount());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+
+        if (file.exists()) {
+            // Windows refuses to rename over an existing file, so move it aside rather than delete it
+            bak.delete();
+            if (!file.renameTo(bak))
+                throw new IOException("Failed to rename "+file+" to "+bak);
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Failed to rename "+tmp+" to "+file);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s!=null);
+        if (s!=null)
+            out.writeUTF(s);
+    }
+
+    private static final int MAGIC = 0x4d434c4e;
+    private static final int VERSION = 1;
+}
@@ -29,6 +29,7 @@ import com.cloudbees.jenkins.plugins.mtslavescloud.MansionConfiguration;
 import com.cloudbees.mtslaves.client.HardwareSpec;
 import com.cloudbees.mtslaves.client.VirtualMachineRef;
 import com.cloudbees.mtslaves.client.VirtualMachineSpec;
+import hudson.Util;
 import hudson.model.AbstractItem;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
@@ -43,14 +44,19 @@ import jenkins.model.Jenkins;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 
+import javax.annotation.CheckForNull;
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static com.cloudbees.jenkins.plugins.mtslavescloud.MansionConfiguration.Size.*;
 import static java.util.Arrays.asList;
@@ -69,6 +75,92 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
      */
     private MansionConfiguration.Size defaultSize;
 
+    /**
+     * Decides which terminating slaves get their file systems snapshotted. Null means {@link SnapshotPolicy.Always}.
+     */
+    private SnapshotPolicy snapshotPolicy;
+
+    /**
+     * Take snapshots as soon as a successful build leaves a slave idle, instead of waiting for its termination.
+     */
+    private boolean snapshotWhenIdle;
+
+    /**
+     * If true, the workspace snapshots are kept separately for each job, and slaves are set up
+     * with the workspace of the job they are going to build.
+     */
+    private boolean perJobWorkspaces;
+
+    /**
+     * If true, slaves are connected while they are still being provisioned,
+     * instead of when {@link hudson.slaves.NodeProvisioner} gets to adding them.
+     */
+    private boolean launchWhileProvisioning;
+
+    /**
+     * What to do when the size asked for can't be provisioned right now. Null means {@link SizeFallback#NEVER}.
+     */
+    private SizeFallback sizeFallback;
+
+    /**
+     * Number of executors of slaves of this template. 0 is treated as 1, for compatibility.
+     */
+    private int numExecutors;
+
+    /**
+     * If true, {@link #numExecutors} is for small slaves, and bigger slaves get proportionally more.
+     */
+    private boolean executorsBySize;
+
+    public enum SizeFallback {
+        NEVER("Wait for the requested size"),
+        SMALLER("Fall back to a smaller size"),
+        BIGGER("Fall back to a bigger size");
+
+        private final String displayName;
+
+        SizeFallback(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * If the first VM is slow to reach this phase, request a second one and keep whichever gets there first.
+     * Null means {@link HedgePhase#NEVER}.
+     */
+    private HedgePhase hedgePhase;
+
+    public enum HedgePhase {
+        NEVER("Never"),
+        ALLOCATED("When the broker is slow to allocate a VM"),
+        BOOTED("When a VM is slow to boot");
+
+        private final String displayName;
+
+        HedgePhase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * Additional file systems to hold build tool caches. Null if none.
+     */
+    private List<CacheVolume> cacheVolumes;
+
+    /**
+     * Lazily loaded by {@link #getClan()}, then kept in memory and updated in place
+     * for as long as the template uses the same cloud.
+     */
+    private transient volatile FileSystemClan clan;
+
     protected SlaveTemplate(String name) {
         super(SlaveTemplateList.get(), name);
     }
@@ -116,6 +208,66 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
         return available;
     }
 
+    public SizeFallback getSizeFallback() {
+        return sizeFallback==null ? SizeFallback.NEVER : sizeFallback;
+    }
+
+    public int getNumExecutors() {
+        return Math.max(1, numExecutors);
+    }
+
+    public boolean isExecutorsBySize() {
+        return executorsBySize;
+    }
+
+    /**
+     * Number of executors a slave of the given hardware size gets.
+     *
+     * @see MansionConfiguration.Size#getCapacity()
+     */
+    public int getNumExecutors(String size) {
+        int n = getNumExecutors();
+        MansionConfiguration.Size s = MansionConfiguration.Size.of(size);
+        if (!executorsBySize || s==null)
+            return n;
+        return n*s.getCapacity();
+    }
+
+    public SizeFallback[] getSizeFallbacks() {
+        return SizeFallback.values();
+    }
+
+    public HedgePhase getHedgePhase() {
+        return hedgePhase==null ? HedgePhase.NEVER : hedgePhase;
+    }
+
+    public HedgePhase[] getHedgePhases() {
+        return HedgePhase.values();
+    }
+
+    /**
+     * Hardware sizes to try in turn when the given one can't be provisioned, as per {@link #getSizeFallback()}.
+     */
+    public List<String> getFallbackSizes(String size) {
+        List<String> sizes = new ArrayList<String>();   // biggest first
+        for (MansionConfiguration.Size s : getAvailableSizes()) {
+            sizes.add(s.getHardwareSize());
+        }
+        int i = sizes.indexOf(size);
+        if (i<0)
+            return Collections.emptyList();
+        switch (getSizeFallback()) {
+        case SMALLER:
+            return sizes.subList(i+1, sizes.size());
+        case BIGGER:
+            List<String> r = new ArrayList<String>(sizes.subList(0, i));
+            Collections.reverse(r);
+            return r;
+        default:
+            return Collections.emptyList();
+        }
+    }
+
     private MansionConfiguration.Size getConfiguredDefaultSize() {
         for (MansionConfiguration config : Jenkins.getInstance().getExtensionList(MansionConfiguration.class)) {
             MansionConfiguration.Size configSize = config.getDefaultSize(this);
@@ -126,11 +278,90 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
         return MansionConfiguration.Size.HISPEED;
     }
 
+    public SnapshotPolicy getSnapshotPolicy() {
+        return snapshotPolicy==null ? new SnapshotPolicy.Always() : snapshotPolicy;
+    }
+
+    public boolean isSnapshotWhenIdle() {
+        return snapshotWhenIdle;
+    }
+
+    public boolean isPerJobWorkspaces() {
+        return perJobWorkspaces;
+    }
+
+    public boolean isLaunchWhileProvisioning() {
+        return launchWhileProvisioning;
+    }
+
+    /**
+     * Cache volumes of this template, minus those that fail {@link #checkCacheVolume(CacheVolume)}.
+     */
+    public List<CacheVolume> getCacheVolumes() {
+        if (cacheVolumes==null)
+            return Collections.emptyList();
+        List<CacheVolume> r = new ArrayList<CacheVolume>(cacheVolumes.size());
+        for (CacheVolume v : cacheVolumes) {
+            if (checkCacheVolume(v)==null)
+                r.add(v);
+        }
+        return Collections.unmodifiableList(r);
+    }
+
+    /**
+     * Gets the cache volume mounted at the given path, if any.
+     */
+    public @CheckForNull CacheVolume getCacheVolume(String path) {
+        for (CacheVolume v : getCacheVolumes()) {
+            if (v.getPath().equals(path))
+                return v;
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a cache volume can be mounted in the slaves of this template.
+     *
+     * @return what's wrong with it, or null if it's fine.
+     */
+    public @CheckForNull String checkCacheVolume(CacheVolume v) {
+        String problem = CacheVolume.checkPath(v.getPath());
+        if (problem!=null)
+            return problem;
+        for (String fs : getPersistentFileSystems()) {
+            if (CacheVolume.overlaps(v.getPath(), fs))
+                return "Cache volume "+v.getPath()+" overlaps with the workspace file system "+fs;
+        }
+        return null;
+    }
+
+    /**
+     * Can this template use the snapshots of the shared cache volume at the given path of another template?
+     */
+    public boolean sharesCacheVolumeWith(SlaveTemplate that, String path) {
+        String type = getMansionType();
+        if (type==null || !type.equals(that.getMansionType()))
+            return false;   // snapshots can't be used across different kinds of mansions
+        for (CacheVolume v : getCacheVolumes()) {
+            if (v.isShared() && v.getPath().equals(path))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Configuration JSON object to be passed to {@link VirtualMachineRef#setup(VirtualMachineSpec)}
      */
     public abstract JSONObject createSpec();
 
+    /**
+     * Digest of {@link #createSpec()}, which changes when the template starts from a different base image.
+     * Snapshots taken under an older spec no longer fit on top of it.
+     */
+    public String getSpecFingerprint() {
+        return Util.getDigestOf(getMansionType()+':'+createSpec());
+    }
+
     /**
      * Type of the mansion that this template lives in.
      */
@@ -165,13 +396,12 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
     /**
      * Checks if this slave template matches the given label.
      *
-     * This recognizes the size specifier "small" and "large" aside from the main label
+     * This recognizes the {@linkplain MansionConfiguration.Size size specifiers} aside from the main label
      */
     public boolean matches(Label label) {
         return label.matches(new VariableResolver<Boolean>() {
             public Boolean resolve(String name) {
-                return name.equals(getLabel()) || name.equals("small") || name.equals("large") || name.equals("xlarge")
-                || name.equals("standard") || name.equals("hi-speed");
+                return name.equals(getLabel()) || MansionConfiguration.Size.of(name)!=null;
             }
         });
     }
@@ -189,12 +419,37 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
 
 
     /**
-     * Loads the current clan of {@link FileSystemLineage}s this master has for this slave template.
+     * Gets the current clan of {@link FileSystemLineage}s this master has for this slave template.
+     *
+     * The clan is loaded from the disk the first time this method is called,
+     * and the same instance is returned from then on, until the cloud this template
+     * uses changes, such as when the cloud is reconfigured.
      */
     public FileSystemClan getClan() throws IOException {
-        FileSystemClan clan = new FileSystemClan(getMansion(),this);
-        clan.load();
-        return clan;
+        MansionCloud m = getMansion();
+        FileSystemClan c = clan;
+        if (c==null || c.getCloud()!=m) {
+            synchronized (this) {
+                c = clan;
+                if (c==null || c.getCloud()!=m) {
+                    if (c!=null)
+                        c.flush();  // so that the new one picks up where the old one left off
+                    c = new FileSystemClan(m,this);
+                    c.load();
+                    clan = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Writes out pending changes to the clan, if it has been loaded at all.
+     */
+    /*package*/ void flushClan() {
+        FileSystemClan c = clan;
+        if (c!=null)
+            c.flush();
     }
 
     public void populate(VirtualMachineSpec spec) {
@@ -202,6 +457,13 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
         if (configs!=null) {
             spec.configs.addAll(configs);
         }
+        for (CacheVolume v : getCacheVolumes()) {
+            try {
+                spec.fs(v.getFileSystemUrl(), v.getPath());
+            } catch (MalformedURLException e) {
+                LOGGER.log(Level.WARNING, "Invalid file system for the cache volume at "+v.getPath()+" of "+getName(), e);
+            }
+        }
     }
 
 
@@ -214,6 +476,13 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
         checkPermission(CONFIGURE);
         JSONObject form = req.getSubmittedForm();
         submit(form);
+        if (cacheVolumes!=null) {
+            for (CacheVolume v : cacheVolumes) {
+                String problem = checkCacheVolume(v);
+                if (problem!=null)
+                    throw new Descriptor.FormException(problem, "cacheVolumes");
+            }
+        }
         save();
         return FormApply.success(".");
     }
@@ -223,6 +492,16 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
         this.account = json.optString("account");
         this.displayName = json.optString("displayName");
         this.defaultSize = MansionConfiguration.Size.valueOf(json.optString("defaultSize"));
+        this.snapshotWhenIdle = json.optBoolean("snapshotWhenIdle");
+        this.perJobWorkspaces = json.optBoolean("perJobWorkspaces");
+        this.launchWhileProvisioning = json.optBoolean("launchWhileProvisioning");
+        this.sizeFallback = SizeFallback.valueOf(json.optString("sizeFallback", SizeFallback.NEVER.name()));
+        this.hedgePhase = HedgePhase.valueOf(json.optString("hedgePhase", HedgePhase.NEVER.name()));
+        this.numExecutors = Math.max(1, json.optInt("numExecutors", 1));
+        this.executorsBySize = json.optBoolean("executorsBySize");
+        this.cacheVolumes = Stapler.getCurrentRequest().bindJSONToList(CacheVolume.class, json.opt("cacheVolumes"));
+        JSONObject policy = json.optJSONObject("snapshotPolicy");
+        this.snapshotPolicy = policy==null ? null : Stapler.getCurrentRequest().bindJSON(SnapshotPolicy.class, policy);
     }
 
 
@@ -236,6 +515,8 @@ public abstract class SlaveTemplate extends AbstractItem implements Describable<
         return Collections.emptyList();
     }
 
+    private static final Logger LOGGER = Logger.getLogger(SlaveTemplate.class.getName());
+
     // for now, I'm not defining a new set of permissions
     public static Permission CONFIGURE = Jenkins.ADMINISTER;
 }
@@ -29,6 +29,8 @@ import hudson.DescriptorExtensionList;
 import hudson.model.Descriptor;
 import jenkins.model.Jenkins;
 
+import java.util.List;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -49,4 +51,8 @@ public abstract class SlaveTemplateDescriptor extends Descriptor<SlaveTemplate>
     public boolean hasMultipleAccounts() {
         return Jenkins.getInstance().clouds.getAll(MansionCloud.class).size()>1;
     }
+
+    public List<Descriptor<SnapshotPolicy>> getSnapshotPolicyDescriptors() {
+        return SnapshotPolicy.all();
+    }
 }
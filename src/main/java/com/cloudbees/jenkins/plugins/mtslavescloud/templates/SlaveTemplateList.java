@@ -78,6 +78,11 @@ import static org.apache.commons.io.IOUtils.*;
 public class SlaveTemplateList extends AbstractModelObject implements ItemGroup<SlaveTemplate>, RootAction, ModelObjectWithContextMenu {
     private final ConcurrentMap<String,SlaveTemplate> templates = new ConcurrentHashMap<String, SlaveTemplate>();
 
+    /**
+     * Lazily loaded by {@link #getSnapshotLedger()}.
+     */
+    private volatile SnapshotLedger ledger;
+
     public SlaveTemplateList() {
         Jenkins.getInstance().lookup.set(SlaveTemplateList.class,this);
         load();
@@ -207,6 +212,28 @@ public class SlaveTemplateList extends AbstractModelObject implements ItemGroup<
 
 
 
+    /**
+     * Gets the record of all the snapshots that templates have created.
+     */
+    public SnapshotLedger getSnapshotLedger() {
+        SnapshotLedger l = ledger;
+        if (l==null) {
+            synchronized (this) {
+                l = ledger;
+                if (l==null) {
+                    l = new SnapshotLedger(new File(getRootDir(),"snapshots.xml"));
+                    try {
+                        l.load();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load the snapshot ledger", e);
+                    }
+                    ledger = l;
+                }
+            }
+        }
+        return l;
+    }
+
     public File getRootDirFor(SlaveTemplate child) {
         return new File(getRootDir(),child.getName());
     }
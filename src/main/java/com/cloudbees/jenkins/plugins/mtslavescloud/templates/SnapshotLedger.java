@@ -0,0 +1,283 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud.templates;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.jenkins.plugins.mtslavescloud.MansionCloud;
+import com.cloudbees.mtslaves.client.SnapshotRef;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.jcip.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Record of every snapshot this master has created and not yet successfully disposed.
+ *
+ * <p>
+ * {@link FileSystemClan} only remembers the snapshots it is using, so a snapshot it forgets about without
+ * managing to dispose it (a failed dispose, a failed save, a deleted template...) would stay on the mansion
+ * forever. {@link Collector} periodically goes through this ledger and disposes everything that no clan refers to.
+ */
+public class SnapshotLedger {
+    /**
+     * Snapshot URL to what we know about it.
+     */
+    @GuardedBy("this")
+    private final Map<String,Entry> entries = new HashMap<String, Entry>();
+
+    private final transient File file;
+
+    private final transient AtomicBoolean savePending = new AtomicBoolean();
+
+    /**
+     * Total number of snapshots that {@link Collector} has reclaimed since the start.
+     */
+    private transient volatile int reclaimed;
+
+    static final class Entry {
+        /**
+         * Name of the template the snapshot was taken for.
+         */
+        final String template;
+        final long timestamp;
+        int failedDisposals;
+
+        Entry(String template, long timestamp) {
+            this.template = template;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /*package*/ SnapshotLedger(File file) {
+        this.file = file;
+    }
+
+    private XmlFile getDataFile() {
+        return new XmlFile(file);
+    }
+
+    /*package*/ synchronized void load() throws IOException {
+        XmlFile f = getDataFile();
+        if (f.exists())
+            f.unmarshal(this);
+    }
+
+    /**
+     * Records a snapshot that was just created for the given template.
+     */
+    public void record(SlaveTemplate template, URL snapshot) {
+        track(template, snapshot, System.currentTimeMillis());
+    }
+
+    /*package*/ void track(SlaveTemplate template, URL snapshot, long timestamp) {
+        synchronized (this) {
+            String key = snapshot.toExternalForm();
+            if (entries.containsKey(key))
+                return;
+            entries.put(key, new Entry(template.getName(), timestamp));
+        }
+        saveLater();
+    }
+
+    /**
+     * Called once a snapshot is disposed, so there's nothing more to keep track of.
+     */
+    public void forget(URL snapshot) {
+        synchronized (this) {
+            if (entries.remove(snapshot.toExternalForm())==null)
+                return;
+        }
+        saveLater();
+    }
+
+    private synchronized Map<String,Entry> getEntries() {
+        return new HashMap<String, Entry>(entries);
+    }
+
+    public int getReclaimed() {
+        return reclaimed;
+    }
+
+    public synchronized void save() throws IOException {
+        getDataFile().write(this);
+    }
+
+    /**
+     * Like {@link FileSystemClan#saveLater()}, collect changes for a bit and write them together.
+     */
+    private void saveLater() {
+        if (savePending.compareAndSet(false,true)) {
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, FileSystemClan.SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*package*/ void flush() {
+        if (savePending.compareAndSet(true,false)) {
+            try {
+                save();
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to persist the snapshot ledger",e);
+            }
+        }
+    }
+
+    /**
+     * Disposes snapshots in the ledger that none of the clans refer to any more.
+     *
+     * @return number of snapshots disposed
+     */
+    /*package*/ int collect(SlaveTemplateList templates, TaskListener listener) throws IOException {
+        Set<String> referenced = new HashSet<String>();
+        for (SlaveTemplate t : templates.getItems()) {
+            if (t.getMansion()==null)
+                continue;   // no way to load its clan, and no way to dispose anything either
+            for (FileSystemLineage l : t.getClan()) {
+                referenced.add(l.getSnapshot().toExternalForm());
+                // snapshots taken before we started keeping the ledger
+                track(t, l.getSnapshot(), l.getTimestamp());
+            }
+        }
+
+        long threshold = System.currentTimeMillis() - GRACE_PERIOD;
+        int budget = BATCH_SIZE;
+        int n = 0;
+        for (Map.Entry<String,Entry> e : getEntries().entrySet()) {
+            if (budget<=0)
+                break;
+            Entry entry = e.getValue();
+            // a snapshot that was just taken might not have made it to the clan yet
+            if (referenced.contains(e.getKey()) || entry.timestamp > threshold)
+                continue;
+
+            budget--;
+            URL url = new URL(e.getKey());
+            try {
+                MansionCloud cloud = getMansionFor(templates, entry.template);
+                if (cloud==null)
+                    continue;
+                SnapshotRef ref = new SnapshotRef(url, cloud.createAccessToken(url));
+                ref.dispose();
+                listener.getLogger().println("Disposed unreferenced snapshot "+url);
+                forget(url);
+                n++;
+            } catch (IOException x) {
+                onFailedDisposal(url, entry, x, listener);
+            } catch (OauthClientException x) {
+                onFailedDisposal(url, entry, x, listener);
+            }
+        }
+        reclaimed += n;
+        return n;
+    }
+
+    private void onFailedDisposal(URL url, Entry entry, Exception x, TaskListener listener) {
+        x.printStackTrace(listener.error("Failed to dispose "+url));
+        synchronized (this) {
+            entry.failedDisposals++;
+        }
+        if (entry.failedDisposals >= MAX_DISPOSAL_ATTEMPTS) {
+            // most likely it's gone already, in one way or another
+            LOGGER.log(WARNING, "Giving up on disposing "+url, x);
+            forget(url);
+        } else {
+            saveLater();
+        }
+    }
+
+    private MansionCloud getMansionFor(SlaveTemplateList templates, String name) {
+        SlaveTemplate t = templates.get(name);
+        if (t!=null)
+            return t.getMansion();
+        // the template is gone, so try whichever cloud we have
+        List<MansionCloud> clouds = Jenkins.getInstance().clouds.getAll(MansionCloud.class);
+        return clouds.isEmpty() ? null : clouds.get(0);
+    }
+
+    /**
+     * Periodically reclaims snapshots that fell through the cracks.
+     */
+    @Extension
+    public static class Collector extends AsyncPeriodicWork {
+        public Collector() {
+            super("Mansion Snapshot Collector");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(15);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            SlaveTemplateList templates = SlaveTemplateList.get();
+            if (templates==null)
+                return;
+            SnapshotLedger ledger = templates.getSnapshotLedger();
+            int n = ledger.collect(templates, listener);
+            if (n>0)
+                LOGGER.log(Level.INFO, "Reclaimed {0} unreferenced snapshot(s), {1} in total",
+                        new Object[]{n, ledger.getReclaimed()});
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotLedger.class.getName());
+
+    /**
+     * Maximum number of snapshots {@link Collector} disposes in one go, to go easy on the mansion.
+     */
+    public static int BATCH_SIZE = Integer.getInteger(SnapshotLedger.class.getName()+".batchSize", 20);
+
+    /**
+     * How long a snapshot has to be around before {@link Collector} considers it unreferenced.
+     */
+    public static long GRACE_PERIOD = Long.getLong(SnapshotLedger.class.getName()+".gracePeriod", TimeUnit.HOURS.toMillis(1));
+
+    /**
+     * How many times do we try to dispose a snapshot before we forget about it?
+     */
+    public static int MAX_DISPOSAL_ATTEMPTS = Integer.getInteger(SnapshotLedger.class.getName()+".maxDisposalAttempts", 10);
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud.templates;
+
+import com.cloudbees.jenkins.plugins.mtslavescloud.BillingMemoBuilder.BuildHistory;
+import hudson.DescriptorExtensionList;
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether the persistent file systems of a terminating slave are worth a snapshot.
+ *
+ * <p>
+ * Taking snapshots costs I/O on the mansion and makes the termination slower, and a snapshot of a slave
+ * whose builds failed might carry a broken workspace forward. Slaves that don't qualify are simply disposed,
+ * and the clan keeps its current snapshots.
+ *
+ * @see SlaveTemplate#getSnapshotPolicy()
+ */
+public abstract class SnapshotPolicy extends AbstractDescribableImpl<SnapshotPolicy> implements ExtensionPoint {
+    /**
+     * @param history
+     *      Builds that ran on the terminating slave, or null if none did.
+     */
+    public abstract boolean shouldSnapshot(SlaveTemplate template, @CheckForNull BuildHistory history) throws IOException;
+
+    public static DescriptorExtensionList<SnapshotPolicy,Descriptor<SnapshotPolicy>> all() {
+        return Jenkins.getInstance().getDescriptorList(SnapshotPolicy.class);
+    }
+
+    /**
+     * Always takes snapshots, which is what we've always done.
+     */
+    public static class Always extends SnapshotPolicy {
+        @DataBoundConstructor
+        public Always() {}
+
+        @Override
+        public boolean shouldSnapshot(SlaveTemplate template, BuildHistory history) {
+            return true;
+        }
+
+        @Extension(ordinal=100)
+        public static class DescriptorImpl extends Descriptor<SnapshotPolicy> {
+            @Override
+            public String getDisplayName() {
+                return "Always";
+            }
+        }
+    }
+
+    /**
+     * Skips slaves that never ran a build, as nothing would have changed in their file systems.
+     */
+    public static class IfBuildsRan extends SnapshotPolicy {
+        @DataBoundConstructor
+        public IfBuildsRan() {}
+
+        @Override
+        public boolean shouldSnapshot(SlaveTemplate template, BuildHistory history) {
+            return history!=null && !history.isEmpty();
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<SnapshotPolicy> {
+            @Override
+            public String getDisplayName() {
+                return "Only if builds ran";
+            }
+        }
+    }
+
+    /**
+     * Only takes snapshots of slaves that ran at least one successful build.
+     */
+    public static class IfBuildSucceeded extends SnapshotPolicy {
+        @DataBoundConstructor
+        public IfBuildSucceeded() {}
+
+        @Override
+        public boolean shouldSnapshot(SlaveTemplate template, BuildHistory history) {
+            return history!=null && history.hasSuccessfulBuild();
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<SnapshotPolicy> {
+            @Override
+            public String getDisplayName() {
+                return "Only after a successful build";
+            }
+        }
+    }
+
+    /**
+     * Takes snapshots of slaves that ran builds, but no more often than every N minutes.
+     */
+    public static class AtMostEvery extends SnapshotPolicy {
+        private final int minutes;
+
+        @DataBoundConstructor
+        public AtMostEvery(int minutes) {
+            this.minutes = minutes;
+        }
+
+        public int getMinutes() {
+            return minutes;
+        }
+
+        @Override
+        public boolean shouldSnapshot(SlaveTemplate template, BuildHistory history) throws IOException {
+            if (history==null || history.isEmpty())
+                return false;
+            long last = template.getClan().getLastSnapshotTimestamp();
+            return System.currentTimeMillis() - last >= TimeUnit.MINUTES.toMillis(minutes);
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<SnapshotPolicy> {
+            @Override
+            public String getDisplayName() {
+                return "At most every N minutes";
+            }
+        }
+    }
+}
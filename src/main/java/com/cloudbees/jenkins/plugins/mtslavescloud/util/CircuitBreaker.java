@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.jenkins.plugins.mtslavescloud.util;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import jenkins.model.Jenkins;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Keeps us from hammering a broker that's failing to give us slaves of a certain kind.
+ *
+ * <p>
+ * While {@linkplain State#CLOSED closed}, requests go through. Errors {@linkplain State#OPEN open} the circuit
+ * for an exponentially growing, jittered period. When that's over, the circuit goes
+ * {@linkplain State#HALF_OPEN half-open} and lets exactly one request through as a probe.
+ * The probe either succeeds and closes the circuit, or fails and opens it again for longer.
+ *
+ * <p>
+ * All the state is kept in one immutable object that's swapped atomically, so no lock is needed.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Immutable snapshot of the breaker.
+     */
+    private static final class Status {
+        final State state;
+        final int numberOfErrors;
+        /**
+         * When the circuit goes half-open if {@link State#OPEN}, or when the probe started if {@link State#HALF_OPEN}.
+         * ms since the epoch.
+         */
+        final long timestamp;
+
+        Status(State state, int numberOfErrors, long timestamp) {
+            this.state = state;
+            this.numberOfErrors = numberOfErrors;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final Status CLOSED_STATUS = new Status(State.CLOSED, 0, 0);
+
+    private final AtomicReference<Status> status = new AtomicReference<Status>(CLOSED_STATUS);
+
+    // all units are milliseconds
+    private final long maxBackOff;
+    private final long firstBackOff;
+
+    /**
+     * Broker, type of the mansion, and hardware size this breaker is for.
+     */
+    public final String id;
+
+    /**
+     * @param first The initial backoff period from the first error, in the given unit
+     * @param max The maximum time to backoff from the previous error
+     * @param unit the unit of time of first and max.
+     */
+    public CircuitBreaker(String id, long first, long max, TimeUnit unit) {
+        this.id = id;
+        maxBackOff = unit.toMillis(max);
+        firstBackOff = unit.toMillis(first);
+    }
+
+    public State getState() {
+        return status.get().state;
+    }
+
+    public int getNumberOfErrors() {
+        return status.get().numberOfErrors;
+    }
+
+    /**
+     * Asks for a permission to send a request now.
+     *
+     * If this returns true while the circuit is open, the caller becomes the probe,
+     * and must report the outcome via {@link #recordSuccess()} or {@link #recordError()}.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            Status s = status.get();
+            long now = System.currentTimeMillis();
+            switch (s.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now < s.timestamp)
+                    return false;
+                break;
+            case HALF_OPEN:
+                if (now < s.timestamp + maxBackOff)
+                    return false;   // a probe is in flight
+                break;  // the probe has been lost, so send another one
+            }
+            if (transition(s, new Status(State.HALF_OPEN, s.numberOfErrors, now)))
+                return true;
+        }
+    }
+
+    /**
+     * Gives back the permission {@link #tryAcquire()} gave, when the caller ends up not sending the request.
+     *
+     * If the caller was the probe, the circuit goes back to open, but lets the next request through as the probe
+     * right away, so that we don't wait for the lost probe to time out.
+     */
+    public void release() {
+        while (true) {
+            Status s = status.get();
+            if (s.state != State.HALF_OPEN)
+                return;
+            if (transition(s, new Status(State.OPEN, s.numberOfErrors, System.currentTimeMillis())))
+                return;
+        }
+    }
+
+    /**
+     * Determines if we should hold off sending a request now, without asking for a permission.
+     */
+    public boolean isBackOffInEffect() {
+        Status s = status.get();
+        switch (s.state) {
+        case OPEN:
+            return System.currentTimeMillis() < s.timestamp;
+        case HALF_OPEN:
+            return System.currentTimeMillis() < s.timestamp + maxBackOff;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * When would the back off restriction lift?
+     *
+     * @return ms since the epoch.
+     */
+    public long getNextAttempt() {
+        Status s = status.get();
+        switch (s.state) {
+        case OPEN:
+            return s.timestamp;
+        case HALF_OPEN:
+            return s.timestamp + maxBackOff;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Records an error event.
+     */
+    public void recordError() {
+        while (true) {
+            Status s = status.get();
+            int n = s.numberOfErrors + 1;
+            long backOff = jitter(getBackOff(n));
+            if (transition(s, new Status(State.OPEN, n, System.currentTimeMillis() + backOff))) {
+                LOGGER.log(WARNING, "{0}: will try again in {1} seconds.",
+                        new Object[]{id, TimeUnit.MILLISECONDS.toSeconds(backOff)});
+                return;
+            }
+        }
+    }
+
+    /**
+     * Call this when service responds acceptably.
+     */
+    public void recordSuccess() {
+        while (true) {
+            Status s = status.get();
+            if (s.state == State.CLOSED && s.numberOfErrors == 0)
+                return;
+            if (transition(s, CLOSED_STATUS))
+                return;
+        }
+    }
+
+    /**
+     * Closes the circuit at the request of the user.
+     */
+    public void reset() {
+        recordSuccess();
+    }
+
+    /**
+     * The amount of time to back off after the given number of consecutive errors, before jitter.
+     */
+    /*package*/ long getBackOff(int numberOfErrors) {
+        if (numberOfErrors <= 0)
+            return 0;
+        // first*2^n, without overflowing
+        if (numberOfErrors >= Long.numberOfLeadingZeros(firstBackOff) - 1)
+            return maxBackOff;
+        return Math.min(firstBackOff << numberOfErrors, maxBackOff);
+    }
+
+    /**
+     * Spreads out the retries from different breakers, so that they don't all come back at once.
+     */
+    private static long jitter(long backOff) {
+        return backOff/2 + (long)(RANDOM.nextDouble() * (backOff - backOff/2));
+    }
+
+    private boolean transition(Status from, Status to) {
+        if (!status.compareAndSet(from, to))
+            return false;
+        if (from.state != to.state) {
+            LOGGER.log(to.state==State.CLOSED ? INFO : FINE, "{0}: {1} -> {2}", new Object[]{id, from.state, to.state});
+            if (Jenkins.getInstance()==null)
+                return true;    // shutting down
+            for (Listener l : Listener.all()) {
+                try {
+                    l.onStateChange(this, from.state, to.state);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Listener failed to handle a state change of "+id, e);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return id+" ("+getState()+")";
+    }
+
+    /**
+     * Receives state transitions of {@link CircuitBreaker}s.
+     */
+    public static abstract class Listener implements ExtensionPoint {
+        public abstract void onStateChange(CircuitBreaker breaker, State from, State to);
+
+        public static ExtensionList<Listener> all() {
+            return Jenkins.getInstance().getExtensionList(Listener.class);
+        }
+    }
+
+    private static final Random RANDOM = new Random();
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.cloudbees.jenkins.plugins.mtslavescloud.util;
+
+import javax.annotation.CheckForNull;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Does something that occasionally takes much longer than usual, and if it does,
+ * starts doing it a second time and keeps whichever attempt finishes first.
+ *
+ * <p>
+ * The attempt that loses is {@linkplain #abandon(boolean) abandoned} as soon as the other one wins,
+ * and whatever it produces when it eventually finishes is {@linkplain #discard(Object) discarded}.
+ * An attempt that fails doesn't win, as long as the other one can still succeed.
+ */
+public abstract class Hedge<V> {
+    /**
+     * Does the work.
+     *
+     * @param backup
+     *      false for the first attempt, true for the one that's started when the first is slow.
+     */
+    protected abstract V attempt(boolean backup) throws Exception;
+
+    /**
+     * Called when the first attempt turns out to be slow, to decide if we should start a backup.
+     */
+    protected abstract boolean shouldHedge();
+
+    /**
+     * Called as soon as an attempt loses, to cut it short if possible.
+     */
+    protected void abandon(boolean backup) {
+    }
+
+    /**
+     * Called when an attempt that lost finishes. This is called once for each attempt that lost,
+     * which is the backup or the first attempt if a backup was started, and all the attempts if
+     * the thread waiting for them is interrupted.
+     *
+     * @param loser
+     *      What the attempt produced, or null if it failed.
+     */
+    protected abstract void discard(@CheckForNull V loser);
+
+    /**
+     * Threads currently running the attempts, so that we can interrupt them.
+     */
+    private final Set<Thread> threads = new HashSet<Thread>();
+    private boolean cancelled;
+
+    /**
+     * @param pool
+     *      Runs the attempts.
+     * @param delay
+     *      How long to give the first attempt before starting a backup, in ms. Negative to never start one.
+     */
+    public V run(ExecutorService pool, long delay) throws Exception {
+        final CompletionService<V> cs = new ExecutorCompletionService<V>(pool);
+        Future<V> primary = cs.submit(task(false));
+        int running = 1;
+
+        Future<V> first;
+        try {
+            first = delay<0 ? cs.take() : cs.poll(delay, TimeUnit.MILLISECONDS);
+            if (first==null) {
+                if (shouldHedge()) {
+                    cs.submit(task(true));
+                    running++;
+                }
+                first = cs.take();
+            }
+        } catch (InterruptedException e) {
+            // nobody is going to use what the attempts produce
+            cancel();
+            discardLater(pool, cs, running);
+            throw e;
+        }
+        running--;
+
+        try {
+            V v = first.get();
+            if (running>0) {
+                abandon(first==primary);
+                discardLater(pool, cs, running);
+            }
+            return v;
+        } catch (ExecutionException e) {
+            if (running==0)
+                throw unwrap(e);
+            LOGGER.log(Level.FINE, "One attempt failed, waiting for the other", e);
+            try {
+                return cs.take().get();
+            } catch (ExecutionException e2) {
+                throw unwrap(e);    // report the first problem
+            } catch (InterruptedException e2) {
+                cancel();
+                discardLater(pool, cs, running);
+                throw e2;
+            } finally {
+                discard(null);      // the attempt that failed
+            }
+        }
+    }
+
+    private Callable<V> task(final boolean backup) {
+        return new Callable<V>() {
+            public V call() throws Exception {
+                Thread t = Thread.currentThread();
+                synchronized (threads) {
+                    if (cancelled)
+                        throw new InterruptedException();
+                    threads.add(t);
+                }
+                try {
+                    return attempt(backup);
+                } finally {
+                    synchronized (threads) {
+                        threads.remove(t);
+                    }
+                    Thread.interrupted();   // don't leave our interrupt behind for the next task of the pool
+                }
+            }
+        };
+    }
+
+    /**
+     * Interrupts the attempts still running, and keeps those not started yet from starting.
+     */
+    private void cancel() {
+        synchronized (threads) {
+            cancelled = true;
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for the losers to finish, without holding up the winner.
+     */
+    private void discardLater(ExecutorService pool, final CompletionService<V> cs, final int losers) {
+        pool.submit(new Runnable() {
+            public void run() {
+                for (int i=0; i<losers; i++) {
+                    V loser = null;
+                    try {
+                        loser = cs.take().get();
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.FINE, "Abandoned attempt failed", e);
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.FINE, "Interrupted while waiting for the abandoned attempt", e);
+                    }
+                    discard(loser);
+                }
+            }
+        });
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable t = e.getCause();
+        if (t instanceof Exception)
+            return (Exception)t;
+        if (t instanceof Error)
+            throw (Error)t;
+        return e;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Hedge.class.getName());
+}
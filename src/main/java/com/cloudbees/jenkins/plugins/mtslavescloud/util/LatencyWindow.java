@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.cloudbees.jenkins.plugins.mtslavescloud.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent measurements of how long something took, to compute percentiles from.
+ */
+public class LatencyWindow {
+    /**
+     * Ring buffer of the measurements in ms.
+     */
+    private final long[] samples;
+    private int next, count;
+
+    public LatencyWindow(int size) {
+        samples = new long[size];
+    }
+
+    public synchronized void record(long ms) {
+        samples[next] = ms;
+        next = (next+1)%samples.length;
+        count = Math.min(count+1, samples.length);
+    }
+
+    /**
+     * Number of measurements we have, up to the size of the window.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the measurement at the given percentile, by the nearest rank.
+     *
+     * @param p 0-100
+     * @return -1 if we have no measurement.
+     */
+    public synchronized long getPercentile(int p) {
+        if (count==0)   return -1;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (count*p+99)/100;
+        return sorted[Math.max(rank, 1)-1];
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.cloudbees.jenkins.plugins.mtslavescloud.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds out when a freshly booted VM starts accepting connections on a port, without sending it anything.
+ *
+ * <p>
+ * Each attempt is a non-blocking connect that's given up on after a short while,
+ * and the attempts are spaced out exponentially, so that we notice quickly
+ * without hammering a VM that's still booting.
+ */
+public class PortProbe {
+    private PortProbe() {}
+
+    /**
+     * Waits until something accepts TCP connections at the given address.
+     *
+     * @param timeout
+     *      How long to keep trying, in ms.
+     * @return
+     *      true if the port accepted a connection within the timeout.
+     */
+    public static boolean await(String host, int port, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+timeout;
+        long wait = FIRST_WAIT;
+        for (int attempts=1; ; attempts++) {
+            long remaining = deadline-System.currentTimeMillis();
+            if (tryConnect(host, port, Math.max(Math.min(ATTEMPT_TIMEOUT, remaining), 1))) {
+                LOGGER.log(Level.FINE, "{0}:{1} accepted a connection after {2} attempts",
+                        new Object[]{host, port, attempts});
+                return true;
+            }
+
+            remaining = deadline-System.currentTimeMillis();
+            if (remaining<=0)
+                return false;
+            Thread.sleep(Math.min(wait, remaining));
+            wait = Math.min(wait*2, MAX_WAIT);
+        }
+    }
+
+    private static boolean tryConnect(String host, int port, long timeout) throws InterruptedException {
+        SocketChannel ch = null;
+        Selector selector = null;
+        try {
+            ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            if (ch.connect(new InetSocketAddress(host, port)))
+                return true;
+            selector = Selector.open();
+            ch.register(selector, SelectionKey.OP_CONNECT);
+            int n = selector.select(timeout);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            return n>0 && ch.finishConnect();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINEST, "Failed to connect to "+host+":"+port, e);
+            return false;
+        } catch (UnresolvedAddressException e) {
+            LOGGER.log(Level.FINEST, "Failed to resolve "+host, e);
+            return false;
+        } finally {
+            try {
+                if (selector!=null)
+                    selector.close();   // not Closeable on Java 6
+            } catch (IOException e) {
+                LOGGER.log(Level.FINEST, "Failed to close", e);
+            }
+            closeQuietly(ch);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c==null)    return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINEST, "Failed to close", e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PortProbe.class.getName());
+
+    /**
+     * How long to wait after the first failed attempt, in ms. Doubles with every attempt.
+     */
+    public static long FIRST_WAIT = Long.getLong(PortProbe.class.getName()+".firstWait", 100);
+
+    /**
+     * Longest wait between attempts, in ms.
+     */
+    public static long MAX_WAIT = Long.getLong(PortProbe.class.getName()+".maxWait", TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * How long to wait for one connection attempt to go through, in ms.
+     */
+    public static long ATTEMPT_TIMEOUT = Long.getLong(PortProbe.class.getName()+".attemptTimeout", TimeUnit.SECONDS.toMillis(2));
+}
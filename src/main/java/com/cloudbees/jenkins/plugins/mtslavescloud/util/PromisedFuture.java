@@ -24,71 +24,83 @@
 
 package com.cloudbees.jenkins.plugins.mtslavescloud.util;
 
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * {@link Future} that was handed out before the actual future is provided.
  *
- * A proxy of {@link Future}.
+ * <p>
+ * It completes when the base does, or when it's {@linkplain #set(Object) set} directly,
+ * and notifies the {@linkplain #addListener(Runnable, java.util.concurrent.Executor) listeners} then,
+ * so nobody needs to block on it to find out.
+ * If it's cancelled before the base is provided, the base gets cancelled as soon as it is.
  *
  * @author Kohsuke Kawaguchi
  */
-public class PromisedFuture<V> implements Future<V> {
-    private volatile Future<? extends V> base;
+public class PromisedFuture<V> extends AbstractFuture<V> {
+    private ListenableFuture<? extends V> base;
 
+    /**
+     * Set if we got cancelled, to whether we may interrupt the base.
+     */
     private Boolean cancel;
 
-    public synchronized void setBase(Future<? extends V> base) {
-        this.base = base;
-
-        if (cancel!=null)   // differed cancellation
-            base.cancel(cancel);
-
-        notifyAll();    // wake up everyone that we have the data
-    }
+    public void setBase(final ListenableFuture<? extends V> base) {
+        Boolean c;
+        synchronized (this) {
+            this.base = base;
+            c = cancel;
+        }
 
-    public boolean cancel(boolean mayInterruptIfRunning) {
-        if (base==null) {
-            cancel = mayInterruptIfRunning;
-            return false;
-        } else {
-            return base.cancel(mayInterruptIfRunning);
+        if (c!=null) {  // deferred cancellation
+            base.cancel(c);
+            return;
         }
-    }
 
-    public boolean isCancelled() {
-        if (base==null)
-            return cancel!=null;
-        else
-            return base.isCancelled();
+        base.addListener(new Runnable() {
+            public void run() {
+                try {
+                    set(Uninterruptibles.getUninterruptibly(base));
+                } catch (ExecutionException e) {
+                    setException(e.getCause());
+                } catch (CancellationException e) {
+                    cancel(false);
+                } catch (RuntimeException e) {
+                    setException(e);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
     }
 
-    public boolean isDone() {
-        if (base==null)
-            return cancel!=null;
-        else
-            return base.isDone();
+    @Override
+    public boolean set(V value) {
+        return super.set(value);
     }
 
-    public V get() throws InterruptedException, ExecutionException {
-        synchronized (this) {
-            while (base==null)
-                wait();
-        }
-        return base.get();
+    @Override
+    public boolean setException(Throwable throwable) {
+        return super.setException(throwable);
     }
 
-    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!super.cancel(mayInterruptIfRunning))
+            return false;
+
+        Future<? extends V> b;
         synchronized (this) {
-            if (base==null) {
-                wait(unit.toMillis(timeout));
-                if (base==null)
-                    throw new TimeoutException();
-            }
+            cancel = mayInterruptIfRunning;
+            b = base;
         }
-        return base.get(timeout, unit);
+        if (b!=null)
+            b.cancel(mayInterruptIfRunning);
+        return true;
     }
 }
@@ -34,6 +34,12 @@ f.entry(field:"broker",title:_("Broker URL")) {
     f.textbox(default:MansionPlugin.MANSION_BROKER_URL)
 }
 
+f.advanced {
+    f.entry(field:"additionalBrokers",title:_("Additional Broker URLs")) {
+        f.textarea()
+    }
+}
+
 if (!MansionCloud.isInDevAtCloud()) {// in DEV@cloud, the implicit user credential only has one account
     f.entry(field:"account",title:_("Account")) {
         f.select()
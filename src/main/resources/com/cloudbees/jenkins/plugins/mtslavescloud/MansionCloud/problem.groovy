@@ -46,14 +46,14 @@ l.layout {
     l.main_panel {
         h1("DEV@cloud Slave Provisioning Problems")
 
-        my.backOffCounters.each { bc ->
+        my.circuitBreakers.each { bc ->
             if (bc.isBackOffInEffect()) {
                 // if we are having a problem, report that
                 div(class:"warning",
                     _("Requesting of ${bc.id} cloud slaves are temporarily suspended due to an earlier problem. ")+
                     _("It will be tried again in ${getTimeSpanString(bc.nextAttempt-System.currentTimeMillis())}"))
 
-                form(method:"post",action:"retryNow?broker=${bc.id}", style:"margin:1em") {
+                form(method:"post",action:"retryNow?id=${bc.id}", style:"margin:1em") {
                     f.submit(value:_("Retry Now"))
                 }
             }
@@ -56,7 +56,7 @@ l.ajax {
             boolean shownSomething = false;
 
             // error from the cloud itself
-            m.backOffCounters.each { bc ->
+            m.circuitBreakers.each { bc ->
                 if (bc.isBackOffInEffect()) {
                     // if we are having a problem, report that
                     row(null) {
@@ -106,6 +106,42 @@ l.ajax {
                     div(align:"center", "idle")
                 }
             }
+
+            // how often do new slaves land on a host that has the snapshots of their template?
+            def affinity = m.snapshotAffinity
+            if (affinity.hitRate >= 0) {
+                row("color:#888") {
+                    div(align:"center", "Warm cache placement: ${affinity.hitRate}% (${affinity.warmPlacements} of ${affinity.warmPlacements+affinity.coldPlacements})")
+                }
+            }
+
+            // how long does it take a booted VM to become a usable slave?
+            def bootToOnline = m.bootToOnline
+            if (bootToOnline.count > 0) {
+                row("color:#888") {
+                    div(align:"center", "Booted to online: p50 ${bootToOnline.getPercentile(50)}ms, p95 ${bootToOnline.getPercentile(95)}ms")
+                }
+            }
+
+            // how often did we ask for a second VM because the first was slow, and how often did that pay off?
+            def hedging = m.hedging
+            if (hedging.hedgeCount > 0) {
+                row("color:#888") {
+                    div(align:"center", "Hedged VM requests: ${hedging.hedgeCount} (${hedging.winCount} came first)")
+                }
+            }
+
+            // what the periodic probe has been seeing from the broker
+            m.brokerEndpoints.each { e ->
+                e.probeHistories.each { h ->
+                    if (h.availability >= 0) {
+                        row(h.up ? "color:#888" : null) {
+                            div(align:"center", class:h.up ? null : "warning",
+                                "${e.url.authority}/${h.mansionType}: ${h.up ? 'up' : 'down'}, p50 ${h.getPercentile(50)}ms, p95 ${h.getPercentile(95)}ms, ${h.availability}% available")
+                        }
+                    }
+                }
+            }
         }
     }
 }
@@ -0,0 +1,28 @@
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BrokerEndpointTest {
+    @Test
+    public void brokerUrlKeepsThePathOfTheEndpoint() throws Exception {
+        assertThat(new BrokerEndpoint(new URL("https://mansion.example.com/")).getBrokerUrl("lxc").toExternalForm(),
+                is("https://mansion.example.com/lxc/"));
+        assertThat(new BrokerEndpoint(new URL("https://example.com/mansion")).getBrokerUrl("lxc").toExternalForm(),
+                is("https://example.com/mansion/lxc/"));
+        assertThat(new BrokerEndpoint(new URL("https://example.com/mansion/")).getBrokerUrl("osx").toExternalForm(),
+                is("https://example.com/mansion/osx/"));
+    }
+
+    @Test
+    public void endpointsOnTheSameHostAreToldApart() throws Exception {
+        assertThat(new BrokerEndpoint(new URL("https://example.com/mansion")).getNormalizedUrl(),
+                is("https://example.com/mansion/"));
+        assertThat(new BrokerEndpoint(new URL("https://example.com/mansion2/")).getNormalizedUrl(),
+                is("https://example.com/mansion2/"));
+    }
+}
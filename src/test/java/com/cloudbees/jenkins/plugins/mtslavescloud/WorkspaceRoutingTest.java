@@ -0,0 +1,45 @@
+package com.cloudbees.jenkins.plugins.mtslavescloud;
+
+import hudson.model.FreeStyleProject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class WorkspaceRoutingTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    /**
+     * A slave provisioned with the size labels on top of the template label must still pick up
+     * the queued builds that only ask for the template.
+     */
+    @Test
+    public void picksQueuedJobWhoseLabelTheSlaveSatisfies() throws Exception {
+        FreeStyleProject warm = j.createFreeStyleProject("warm");
+        warm.setAssignedLabel(j.jenkins.getLabel("lxc-fedora17"));
+        FreeStyleProject other = j.createFreeStyleProject("other");
+        other.setAssignedLabel(j.jenkins.getLabel("osx"));
+        warm.scheduleBuild2(0);
+        other.scheduleBuild2(0);
+        j.jenkins.getQueue().maintain();
+
+        Set<String> warmJobs = new HashSet<String>(asList("warm", "other"));
+        Set<String> none = Collections.emptySet();
+
+        assertThat(WorkspaceRouting.pick(j.jenkins.getLabel("lxc-fedora17 small"), warmJobs, none), is("warm"));
+        // nobody else can build there
+        assertThat(WorkspaceRouting.pick(j.jenkins.getLabel("lxc-fedora17 small"), warmJobs, Collections.singleton("warm")), is(nullValue()));
+        // the osx build doesn't belong on a fedora slave
+        assertThat(WorkspaceRouting.pick(j.jenkins.getLabel("lxc-fedora17"), Collections.singleton("other"), none), is(nullValue()));
+    }
+}
@@ -0,0 +1,25 @@
+package com.cloudbees.jenkins.plugins.mtslavescloud.templates;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CacheVolumeTest {
+    @Test
+    public void pathMustBeAbsoluteAndNotRoot() {
+        assertNull(CacheVolume.checkPath("/home/jenkins/.m2"));
+        assertNotNull(CacheVolume.checkPath(".m2"));
+        assertNotNull(CacheVolume.checkPath("/"));
+        assertNotNull(CacheVolume.checkPath("//"));
+        assertNotNull(CacheVolume.checkPath(null));
+    }
+
+    @Test
+    public void overlappingPaths() {
+        assertTrue(CacheVolume.overlaps("/jenkins", "/jenkins/"));
+        assertTrue(CacheVolume.overlaps("/jenkins/.m2", "/jenkins"));
+        assertTrue(CacheVolume.overlaps("/jenkins", "/jenkins/.m2"));
+        assertFalse(CacheVolume.overlaps("/jenkins2", "/jenkins"));
+        assertFalse(CacheVolume.overlaps("/home/.m2", "/jenkins"));
+    }
+}
@@ -0,0 +1,150 @@
+package com.cloudbees.jenkins.plugins.mtslavescloud.templates;
+
+import com.cloudbees.api.cr.Credential;
+import com.cloudbees.jenkins.plugins.mtslavescloud.MansionCloud;
+import com.cloudbees.mtslaves.client.VirtualMachineRef;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FileSystemClanTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    /**
+     * Slaves of the same template terminating at the same time must not lose track of each other's snapshots.
+     */
+    @Test
+    public void concurrentTerminationsDoNotLeakSnapshots() throws Exception {
+        SlaveTemplate template = SlaveTemplateList.get().get("lxc-fedora17");
+        final RecordingClan clan = new RecordingClan(new MansionCloud(new URL("http://localhost/")), template);
+
+        final int n = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<Void>> terminations = new ArrayList<Future<Void>>();
+            for (int i = 0; i < n; i++) {
+                final URL snapshot = new URL("http://mansion1.example.com/zfs/snapshot/" + i);
+                terminations.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        start.await();
+                        clan.add(new FileSystemLineage("/", snapshot));
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> f : terminations) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        List<String> kept = new ArrayList<String>();
+        for (FileSystemLineage l : clan) {
+            kept.add(l.getSnapshot().toExternalForm());
+        }
+        assertThat(kept.size(), is(1));
+        assertThat(clan.disposed.size(), is(n - 1));
+
+        // every snapshot is either still in the clan or disposed, and none is disposed twice
+        Set<String> all = new HashSet<String>(clan.disposed);
+        all.addAll(kept);
+        assertThat(all.size(), is(n));
+    }
+
+    /**
+     * A VM set up for a job gets that job's workspace, and the workspace follows the job when it's renamed.
+     */
+    @Test
+    public void jobWorkspaceIsPreferredAndFollowsRenames() throws Exception {
+        SlaveTemplate template = SlaveTemplateList.get().get("lxc-fedora17");
+        RecordingClan clan = new RecordingClan(new MansionCloud(new URL("http://localhost/")), template);
+        clan.add(new FileSystemLineage("/", new URL("http://mansion1.example.com/zfs/snapshot/shared")));
+        clan.add(new FileSystemLineage("/", new URL("http://mansion1.example.com/zfs/snapshot/warm"), 1L, 1, "warm", null));
+
+        VirtualMachineRef vm = new VirtualMachineRef(new URL("http://mansion1.example.com/vm/1"), (Credential) null);
+        assertThat(snapshotOf(clan.getApplicableLineages(vm, "warm")), is("http://mansion1.example.com/zfs/snapshot/warm"));
+        assertThat(snapshotOf(clan.getApplicableLineages(vm, "cold")), is("http://mansion1.example.com/zfs/snapshot/shared"));
+        assertThat(clan.getWarmJobs(vm), is(Collections.singleton("warm")));
+
+        clan.rename("warm", "folder/hot");
+        assertThat(snapshotOf(clan.getApplicableLineages(vm, "folder/hot")), is("http://mansion1.example.com/zfs/snapshot/warm"));
+        assertThat(snapshotOf(clan.getApplicableLineages(vm, "warm")), is("http://mansion1.example.com/zfs/snapshot/shared"));
+        assertThat(clan.disposed.isEmpty(), is(true));
+    }
+
+    /**
+     * A clan saved as clan.xml by an older version is moved over to the binary store.
+     */
+    @Test
+    public void legacyClanIsMigrated() throws Exception {
+        SlaveTemplate template = SlaveTemplateList.get().get("lxc-fedora17");
+        File legacy = new File(template.getRootDir(), "clan.xml");
+        legacy.getParentFile().mkdirs();
+        FileUtils.writeStringToFile(legacy,
+                "<?xml version='1.0' encoding='UTF-8'?>\n" +
+                "<com.cloudbees.jenkins.plugins.mtslavescloud.templates.FileSystemClan>\n" +
+                "  <lastDestroyDate>123</lastDestroyDate>\n" +
+                "  <lineages>\n" +
+                "    <com.cloudbees.jenkins.plugins.mtslavescloud.templates.FileSystemLineage>\n" +
+                "      <path>/</path>\n" +
+                "      <snapshot>http://mansion1.example.com/zfs/snapshot/1</snapshot>\n" +
+                "    </com.cloudbees.jenkins.plugins.mtslavescloud.templates.FileSystemLineage>\n" +
+                "  </lineages>\n" +
+                "</com.cloudbees.jenkins.plugins.mtslavescloud.templates.FileSystemClan>\n");
+
+        MansionCloud cloud = new MansionCloud(new URL("http://localhost/"));
+        RecordingClan clan = new RecordingClan(cloud, template);
+        clan.load();
+        assertThat(legacy.exists(), is(false));
+        assertThat(new File(template.getRootDir(), "clan.dat").exists(), is(true));
+
+        // and it's read back from the new store from then on
+        RecordingClan reloaded = new RecordingClan(cloud, template);
+        reloaded.load();
+        List<String> snapshots = new ArrayList<String>();
+        for (FileSystemLineage l : reloaded) {
+            snapshots.add(l.getPath()+" "+l.getSnapshot());
+        }
+        assertThat(snapshots, is(Collections.singletonList("/ http://mansion1.example.com/zfs/snapshot/1")));
+    }
+
+    private static String snapshotOf(List<FileSystemLineage> lineages) {
+        assertThat(lineages.size(), is(1));
+        return lineages.get(0).getSnapshot().toExternalForm();
+    }
+
+    static class RecordingClan extends FileSystemClan {
+        final List<String> disposed = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingClan(MansionCloud cloud, SlaveTemplate template) {
+            super(cloud, template);
+        }
+
+        @Override
+        void dispose(FileSystemLineage fsl) {
+            disposed.add(fsl.getSnapshot().toExternalForm());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.cloudbees.jenkins.plugins.mtslavescloud.templates;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class LineageStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        File f = new File(tmp.getRoot(), "sub/clan.dat");
+        LineageStore store = new LineageStore(f);
+        assertThat(store.exists(), is(false));
+
+        List<FileSystemLineage> lineages = Arrays.asList(
+                new FileSystemLineage("/", new URL("http://mansion1.example.com/zfs/snapshot/1"), 1000L, 3, null, "abc")
+                        .withBuildCount(7),
+                new FileSystemLineage("/scratch", new URL("http://mansion2.example.com/zfs/snapshot/2"), null, 0, "folder/job", null));
+        store.write(123L, lineages);
+        assertThat(store.exists(), is(true));
+        assertThat(new File(f.getPath()+".tmp").exists(), is(false));
+
+        LineageStore.Contents c = new LineageStore(f).read();
+        assertThat(c.lastDestroyDate, is(123L));
+        assertThat(c.lineages.size(), is(2));
+
+        FileSystemLineage a = c.lineages.get(0);
+        assertThat(a.getPath(), is("/"));
+        assertThat(a.getSnapshot().toExternalForm(), is("http://mansion1.example.com/zfs/snapshot/1"));
+        assertThat(a.getTimestamp(), is(1000L));
+        assertThat(a.getGeneration(), is(3));
+        assertThat(a.getJob(), is(nullValue()));
+        assertThat(a.getSpecFingerprint(), is("abc"));
+        assertThat(a.getBuildCount(), is(7));
+
+        FileSystemLineage b = c.lineages.get(1);
+        assertThat(b.getPath(), is("/scratch"));
+        assertThat(b.getTimestamp(), is(0L));
+        assertThat(b.getJob(), is("folder/job"));
+        assertThat(b.getSpecFingerprint(), is(nullValue()));
+
+        // rewriting replaces the old contents
+        store.write(null, Collections.<FileSystemLineage>emptyList());
+        c = store.read();
+        assertThat(c.lastDestroyDate, is(nullValue()));
+        assertThat(c.lineages.isEmpty(), is(true));
+    }
+
+    @Test
+    public void previousVersionIsRecoveredIfTheWriteWasCutShort() throws Exception {
+        File f = new File(tmp.getRoot(), "clan.dat");
+        LineageStore store = new LineageStore(f);
+        store.write(1L, Collections.<FileSystemLineage>emptyList());
+        store.write(2L, Collections.<FileSystemLineage>emptyList());
+        assertThat(store.read().lastDestroyDate, is(2L));
+
+        // as if we crashed after moving the old version aside but before renaming the new one in
+        assertThat(f.delete(), is(true));
+        assertThat(store.exists(), is(true));
+        assertThat(store.read().lastDestroyDate, is(1L));
+
+        store.write(3L, Collections.<FileSystemLineage>emptyList());
+        assertThat(store.read().lastDestroyDate, is(3L));
+    }
+
+    @Test
+    public void unsupportedVersionIsRejected() throws Exception {
+        File f = tmp.newFile("clan.dat");
+        LineageStore store = new LineageStore(f);
+        store.write(null, Collections.<FileSystemLineage>emptyList());
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek(4);    // right after the magic
+            raf.writeByte(99);
+        } finally {
+            raf.close();
+        }
+
+        try {
+            store.read();
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage().contains("Unsupported version 99"), is(true));
+        }
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws Exception {
+        File f = tmp.newFile("clan.dat");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.writeBytes("<?xml version='1.0'?>");
+        } finally {
+            raf.close();
+        }
+
+        try {
+            new LineageStore(f).read();
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage().contains("is not a lineage store"), is(true));
+        }
+    }
+}
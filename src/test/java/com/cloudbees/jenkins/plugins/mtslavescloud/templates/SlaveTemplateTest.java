@@ -38,6 +38,9 @@ public class SlaveTemplateTest {
                 matches("lxc-fedora17", "lxc-fedora17 || standard"),
                 matches("lxc-fedora17", "lxc-fedora17 || hi-speed"),
                 matches("lxc-fedora17", "hi-speed"),
+                matches("lxc-fedora17", "xlarge"),
+                matches("lxc-fedora17", "small"),
+                noMatch("lxc-fedora17", "medium"),
                 matches("android", "android && standard"),
                 noMatch("android", "standard")
                 };
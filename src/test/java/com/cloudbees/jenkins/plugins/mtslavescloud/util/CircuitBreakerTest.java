@@ -0,0 +1,114 @@
+package com.cloudbees.jenkins.plugins.mtslavescloud.util;
+
+import com.cloudbees.jenkins.plugins.mtslavescloud.util.CircuitBreaker.State;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CircuitBreakerTest {
+    /**
+     * Backs off for a couple of ms, but a probe in flight holds off the others for a minute.
+     */
+    private CircuitBreaker quick() {
+        return new CircuitBreaker("test", 1, 60000, TimeUnit.MILLISECONDS);
+    }
+
+    private void waitForBackOff(CircuitBreaker cb) throws InterruptedException {
+        while (System.currentTimeMillis() <= cb.getNextAttempt())
+            Thread.sleep(5);
+    }
+
+    @Test
+    public void closedLetsEverythingThrough() {
+        CircuitBreaker cb = quick();
+        assertThat(cb.getState(), is(State.CLOSED));
+        assertThat(cb.tryAcquire(), is(true));
+        assertThat(cb.tryAcquire(), is(true));
+        assertThat(cb.isBackOffInEffect(), is(false));
+    }
+
+    @Test
+    public void errorOpensAndSingleProbeCloses() throws Exception {
+        CircuitBreaker cb = new CircuitBreaker("test", 1, 1, TimeUnit.MINUTES);
+        cb.recordError();
+        assertThat(cb.getState(), is(State.OPEN));
+        assertThat(cb.getNumberOfErrors(), is(1));
+        assertThat(cb.isBackOffInEffect(), is(true));
+        assertThat(cb.tryAcquire(), is(false));
+
+        cb = quick();
+        cb.recordError();
+        waitForBackOff(cb);
+        assertThat(cb.tryAcquire(), is(true));
+        assertThat(cb.getState(), is(State.HALF_OPEN));
+        // only one probe at a time
+        assertThat(cb.tryAcquire(), is(false));
+        assertThat(cb.isBackOffInEffect(), is(true));
+
+        cb.recordSuccess();
+        assertThat(cb.getState(), is(State.CLOSED));
+        assertThat(cb.getNumberOfErrors(), is(0));
+        assertThat(cb.tryAcquire(), is(true));
+    }
+
+    @Test
+    public void failedProbeReopensForLonger() throws Exception {
+        CircuitBreaker cb = quick();
+        cb.recordError();
+        waitForBackOff(cb);
+        assertThat(cb.tryAcquire(), is(true));
+
+        cb.recordError();
+        assertThat(cb.getState(), is(State.OPEN));
+        assertThat(cb.getNumberOfErrors(), is(2));
+    }
+
+    @Test
+    public void releasedProbeCanBeTakenAgain() throws Exception {
+        CircuitBreaker cb = quick();
+        cb.release();   // nothing to give back
+        assertThat(cb.getState(), is(State.CLOSED));
+
+        cb.recordError();
+        waitForBackOff(cb);
+        assertThat(cb.tryAcquire(), is(true));
+        assertThat(cb.getState(), is(State.HALF_OPEN));
+
+        cb.release();
+        assertThat(cb.getState(), is(State.OPEN));
+        assertThat(cb.getNumberOfErrors(), is(1));
+        waitForBackOff(cb);
+        assertThat(cb.tryAcquire(), is(true));
+        assertThat(cb.getState(), is(State.HALF_OPEN));
+    }
+
+    @Test
+    public void resetCloses() {
+        CircuitBreaker cb = quick();
+        cb.recordError();
+        cb.reset();
+        assertThat(cb.getState(), is(State.CLOSED));
+        assertThat(cb.getNumberOfErrors(), is(0));
+    }
+
+    @Test
+    public void backOffGrowsUpToTheMax() {
+        CircuitBreaker cb = new CircuitBreaker("test", 2, 300, TimeUnit.SECONDS);
+        assertThat(cb.getBackOff(-1), is(0L));
+        assertThat(cb.getBackOff(0), is(0L));
+        assertThat(cb.getBackOff(1), is(4000L));
+        assertThat(cb.getBackOff(2), is(8000L));
+        assertThat(cb.getBackOff(100), is(300000L));
+        assertThat(cb.getBackOff(Integer.MAX_VALUE), is(300000L));
+
+        long last = 0;
+        for (int n=1; n<200; n++) {
+            long b = cb.getBackOff(n);
+            assertThat(b >= last && b <= 300000L, is(true));
+            last = b;
+        }
+    }
+}